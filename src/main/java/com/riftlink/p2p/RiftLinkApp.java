@@ -16,7 +16,9 @@ import java.net.InetAddress;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The main entry point for the RiftLink P2P application.
@@ -48,24 +50,60 @@ public class RiftLinkApp extends Application {
         SecurityService securityService = new SecurityService();
         FileManager fileManager = new FileManager(sharedDir, downloadsDir);
         p2pService = new P2PService(Constants.P2P_PORT);
-        uploadManager = new UploadManager(securityService, fileManager, sharedDir);
-        downloadManager = new DownloadManager(p2pService, securityService, fileManager, downloadsDir);
+        BandwidthManager bandwidthManager = createBandwidthManager();
+        uploadManager = new UploadManager(securityService, fileManager, bandwidthManager);
+        downloadManager = new DownloadManager(p2pService, securityService, fileManager, downloadsDir, bandwidthManager);
+        configureRetryBudget();
 
         // --- 3. Start Networking Services ---
-        handleBootstrapping();
+        CompletableFuture<Void> networkReady = handleBootstrapping();
         uploadManager.start(Constants.UPLOAD_PORT);
 
         // --- 4. Initialize ViewModel and UI ---
         MainViewModel viewModel = new MainViewModel(p2pService, fileManager, downloadManager, securityService);
         loadUI(primaryStage, viewModel);
+
+        // --- 5. Resume unfinished downloads once the DHT is reachable ---
+        networkReady.thenRun(viewModel::restoreDownloads);
+    }
+
+    /**
+     * Creates the bandwidth manager with the initial limits from the command line, given in
+     * bytes per second as {@code --global-limit}, {@code --upload-limit} and {@code --download-limit}.
+     */
+    private BandwidthManager createBandwidthManager() {
+        Map<String, String> named = getParameters().getNamed();
+        BandwidthManager bandwidthManager = new BandwidthManager();
+        try {
+            bandwidthManager.setGlobalLimit(Long.parseLong(named.getOrDefault("global-limit", "0")));
+            bandwidthManager.setDirectionLimit(BandwidthManager.Direction.UPLOAD, Long.parseLong(named.getOrDefault("upload-limit", "0")));
+            bandwidthManager.setDirectionLimit(BandwidthManager.Direction.DOWNLOAD, Long.parseLong(named.getOrDefault("download-limit", "0")));
+        } catch (NumberFormatException e) {
+            logger.error("Invalid bandwidth limit provided. Remaining limits are left unlimited.", e);
+        }
+        return bandwidthManager;
+    }
+
+    /**
+     * Applies the number of failed chunk attempts a download may absorb, given as {@code --retry-budget}.
+     */
+    private void configureRetryBudget() {
+        String retryBudget = getParameters().getNamed().get("retry-budget");
+        if (retryBudget == null) return;
+        try {
+            downloadManager.setRetryBudget(Integer.parseInt(retryBudget));
+        } catch (NumberFormatException e) {
+            logger.error("Invalid retry budget provided: {}. Using the default.", retryBudget);
+        }
     }
 
     /**
      * Handles the peer bootstrapping logic based on command-line arguments.
+     * @return A future that completes once the P2P service has started.
      */
-    private void handleBootstrapping() {
+    private CompletableFuture<Void> handleBootstrapping() {
         Parameters params = getParameters();
-        List<String> args = params.getRaw();
+        List<String> args = params.getUnnamed();
         InetAddress bootstrapAddress = null;
         int bootstrapPort = Constants.P2P_PORT;
 
@@ -81,7 +119,7 @@ public class RiftLinkApp extends Application {
             }
         }
 
-        p2pService.start(bootstrapAddress, bootstrapPort);
+        return p2pService.start(bootstrapAddress, bootstrapPort);
     }
     
     /**
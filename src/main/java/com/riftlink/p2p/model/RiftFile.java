@@ -25,4 +25,22 @@ public record RiftFile(
     public int getNumberOfChunks() {
         return chunkHashes.size();
     }
+
+    /**
+     * Calculates where a chunk starts within the file.
+     * @param chunkIndex The index of the chunk.
+     * @return The byte offset of the chunk.
+     */
+    public long getChunkOffset(int chunkIndex) {
+        return (long) chunkIndex * chunkSize;
+    }
+
+    /**
+     * Calculates the length of a chunk; only the last chunk may be shorter than chunkSize.
+     * @param chunkIndex The index of the chunk.
+     * @return The length of the chunk in bytes.
+     */
+    public int getChunkLength(int chunkIndex) {
+        return (int) Math.min(chunkSize, totalSize - getChunkOffset(chunkIndex));
+    }
 }
\ No newline at end of file
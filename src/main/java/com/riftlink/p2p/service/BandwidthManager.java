@@ -0,0 +1,117 @@
+package com.riftlink.p2p.service;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shapes upload and download traffic with a hierarchy of token buckets.
+ * <p>
+ * Every transfer passes through up to four buckets: one for its peer, one for its file,
+ * one for its direction and a global one. The transfer moves no faster than the tightest
+ * of them allows, and all transfers sharing a bucket share its rate. Limits are given in
+ * bytes per second, can be changed while transfers are running, and default to unlimited.
+ * Per-file and per-peer buckets only exist while a limit is set for them.
+ */
+public class BandwidthManager {
+
+    /**
+     * The direction of a transfer, as seen from this node.
+     */
+    public enum Direction { UPLOAD, DOWNLOAD }
+
+    /**
+     * Meters the traffic of one transfer through its chain of buckets.
+     */
+    @FunctionalInterface
+    public interface Throttle {
+        /**
+         * Accounts for bytes moved over the socket, blocking while a limit is exceeded.
+         * @throws InterruptedIOException if interrupted while waiting.
+         */
+        void acquire(int bytes) throws InterruptedIOException;
+    }
+
+    /**
+     * A throttle that never blocks.
+     */
+    public static final Throttle UNLIMITED = bytes -> {};
+
+    private final TokenBucket global = new TokenBucket(0);
+    private final TokenBucket upload = new TokenBucket(0);
+    private final TokenBucket download = new TokenBucket(0);
+    private final ConcurrentMap<String, TokenBucket> fileBuckets = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TokenBucket> peerBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * Sets the limit on all traffic combined.
+     * @param bytesPerSecond The limit, or zero for unlimited.
+     */
+    public void setGlobalLimit(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Sets the limit on all traffic in one direction.
+     * @param bytesPerSecond The limit, or zero for unlimited.
+     */
+    public void setDirectionLimit(Direction direction, long bytesPerSecond) {
+        bucketFor(direction).setRate(bytesPerSecond);
+    }
+
+    /**
+     * Sets the limit on the traffic of one file, uploads and downloads alike.
+     * @param infohash The infohash of the file.
+     * @param bytesPerSecond The limit, or zero to remove it.
+     */
+    public void setFileLimit(String infohash, long bytesPerSecond) {
+        setKeyedLimit(fileBuckets, infohash, bytesPerSecond);
+    }
+
+    /**
+     * Sets the limit on the traffic exchanged with one peer, uploads and downloads alike.
+     * @param host The peer's host address.
+     * @param bytesPerSecond The limit, or zero to remove it.
+     */
+    public void setPeerLimit(String host, long bytesPerSecond) {
+        setKeyedLimit(peerBuckets, host, bytesPerSecond);
+    }
+
+    /**
+     * Creates the throttle for a transfer.
+     * The per-file and per-peer limits are looked up on every call, so they apply to running transfers.
+     * @param direction The direction of the transfer.
+     * @param infohash The infohash of the file being transferred.
+     * @param host The host address of the remote peer.
+     * @return The throttle to feed with every read from or write to the transfer's socket.
+     */
+    public Throttle throttle(Direction direction, String infohash, String host) {
+        TokenBucket directionBucket = bucketFor(direction);
+        return bytes -> {
+            TokenBucket peerBucket = peerBuckets.get(host);
+            TokenBucket fileBucket = fileBuckets.get(infohash);
+            try {
+                // Narrowest first, so a transfer held back by its own limit doesn't take shared tokens early.
+                if (peerBucket != null) peerBucket.acquire(bytes);
+                if (fileBucket != null) fileBucket.acquire(bytes);
+                directionBucket.acquire(bytes);
+                global.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        };
+    }
+
+    private TokenBucket bucketFor(Direction direction) {
+        return direction == Direction.UPLOAD ? upload : download;
+    }
+
+    private static void setKeyedLimit(ConcurrentMap<String, TokenBucket> buckets, String key, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            buckets.remove(key);
+        } else {
+            buckets.computeIfAbsent(key, k -> new TokenBucket(bytesPerSecond)).setRate(bytesPerSecond);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.riftlink.p2p.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.BitSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks which chunks of a download are verified on disk and lets readers wait for them.
+ * <p>
+ * A download marks each chunk as it completes; a reader blocks until the chunk it needs is
+ * there, or until the download fails or is cancelled, in which case the wait fails.
+ */
+public class ChunkAvailability {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final BitSet available = new BitSet();
+    private String failure;
+
+    /**
+     * Records that a chunk has been verified and wakes up readers waiting for it.
+     */
+    public void markAvailable(int chunkIndex) {
+        lock.lock();
+        try {
+            available.set(chunkIndex);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the download stopped for good; current and future waits for missing chunks fail.
+     * @param reason The reason reported to waiting readers.
+     */
+    public void fail(String reason) {
+        lock.lock();
+        try {
+            if (failure == null) {
+                failure = reason;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the chunk has been verified.
+     */
+    public boolean isAvailable(int chunkIndex) {
+        lock.lock();
+        try {
+            return available.get(chunkIndex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a chunk has been verified.
+     * @throws IOException if the download stops without the chunk, or the wait is interrupted.
+     */
+    public void awaitChunk(int chunkIndex) throws IOException {
+        lock.lock();
+        try {
+            while (!available.get(chunkIndex)) {
+                if (failure != null) {
+                    throw new IOException("Chunk " + chunkIndex + " will not arrive: " + failure);
+                }
+                changed.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for chunk " + chunkIndex);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.util.BufferPool;
+import com.riftlink.p2p.util.Constants;
+import com.riftlink.p2p.util.Hashing;
+import com.riftlink.p2p.util.ThreadPools;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Moves received chunk data through verification and onto disk in separate stages, so network,
+ * CPU and disk work overlap instead of taking turns on each receiving thread.
+ * <p>
+ * Receivers hand every segment they read to a {@link Job}. A pool with one thread per core hashes
+ * each chunk's segments in order, then a small pool of writer threads puts them in place. Both
+ * hand-offs are bounded in bytes, and a receiver reserves room in both stages before handing a
+ * segment over: if either is full it blocks and stops draining its socket, so TCP flow control
+ * slows the peer down. The hashers themselves never wait for the disk.
+ */
+public class ChunkPipeline {
+    private final ExecutorService verifiers = ThreadPools.newFixedExecutor("chunk-verify", Runtime.getRuntime().availableProcessors());
+    private final ExecutorService writers = ThreadPools.newFixedExecutor("chunk-write", Constants.DISK_WRITER_THREADS);
+    private final Semaphore verifyCapacity = new Semaphore(Constants.PIPELINE_STAGE_CAPACITY_BYTES);
+    private final Semaphore writeCapacity = new Semaphore(Constants.PIPELINE_STAGE_CAPACITY_BYTES);
+
+    /**
+     * One chunk on its way through the pipeline. Segments must be passed in chunk order, from a single thread.
+     */
+    public final class Job implements ChunkSink {
+        private final DownloadOutput output;
+        private final int chunkIndex;
+        private final MessageDigest digest = Hashing.newSha256Digest();
+        private final Queue<CompletableFuture<Void>> writes = new ConcurrentLinkedQueue<>();
+        // Each segment is hashed after the previous one, on whichever verifier is free.
+        private CompletableFuture<Void> hashed = CompletableFuture.completedFuture(null);
+        private int received = 0;
+        private volatile IOException failure;
+
+        private Job(DownloadOutput output, int chunkIndex) {
+            this.output = output;
+            this.chunkIndex = chunkIndex;
+        }
+
+        /**
+         * Hands a segment to the verification stage, waiting while either stage is full.
+         * @throws IOException if an earlier segment could not be written, for example because
+         *         another copy of the chunk has been claimed.
+         */
+        @Override
+        public void accept(byte[] data, int offset, int length) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            // Segments are copied into pooled buffers, so the caller may reuse its own buffer at once.
+            for (int end = offset + length; offset < end; offset += Constants.TRANSFER_BUFFER_SIZE) {
+                int segmentLength = Math.min(Constants.TRANSFER_BUFFER_SIZE, end - offset);
+                BufferPool.Lease segment = BufferPool.acquire();
+                System.arraycopy(data, offset, segment.array(), 0, segmentLength);
+                submit(segment, segmentLength);
+            }
+        }
+
+        private void submit(BufferPool.Lease segment, int length) throws IOException {
+            int segmentOffset = received;
+            received += length;
+            // Both stages' capacity is taken here, on the receiving thread, so a verifier never
+            // blocks on the disk and hashing for other chunks keeps going while writes catch up.
+            try {
+                writeCapacity.acquire(length);
+                try {
+                    verifyCapacity.acquire(length);
+                } catch (InterruptedException e) {
+                    writeCapacity.release(length);
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                segment.close();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the pipeline");
+            }
+            hashed = hashed.thenRunAsync(() -> {
+                digest.update(segment.array(), 0, length);
+                verifyCapacity.release(length);
+                writes.add(CompletableFuture.runAsync(() -> write(segment, segmentOffset, length), writers));
+            }, verifiers);
+        }
+
+        private void write(BufferPool.Lease segment, int segmentOffset, int length) {
+            try {
+                if (failure == null) {
+                    output.blockSink(chunkIndex, segmentOffset).accept(segment.array(), 0, length);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                segment.close();
+                writeCapacity.release(length);
+            }
+        }
+
+        /**
+         * Waits until every segment has been hashed and written.
+         * @return The hash of the chunk's data.
+         * @throws IOException if a segment could not be written.
+         */
+        public String finish() throws IOException {
+            hashed.join();
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+            if (failure != null) {
+                throw failure;
+            }
+            return Hashing.finish(digest);
+        }
+
+        /**
+         * Stops a job whose transfer failed, and waits until none of its segments can reach the
+         * disk any more. Segments still queued are dropped; a write already under way is waited
+         * for. Without this, a late write from a failed attempt could land on top of a copy of
+         * the chunk that a later attempt has verified and claimed.
+         */
+        public void abort() {
+            if (failure == null) {
+                failure = new IOException("Transfer of chunk " + chunkIndex + " was aborted");
+            }
+            try {
+                hashed.join();
+            } catch (CompletionException | CancellationException e) {
+                // The pool is shutting down; no further writes will be queued.
+            }
+            for (CompletableFuture<Void> write : writes) {
+                try {
+                    write.join();
+                } catch (CompletionException | CancellationException e) {
+                    // Likewise: a write that never ran cannot touch the disk.
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts sending a chunk through the pipeline into a download's output file.
+     */
+    public Job begin(DownloadOutput output, int chunkIndex) {
+        return new Job(output, chunkIndex);
+    }
+
+    /**
+     * Runs a check on the verification pool and waits for it, so hashing never competes for
+     * more threads than there are cores.
+     * @param check The check to run, for example hashing a buffered chunk or a chunk on disk.
+     * @return The check's result.
+     * @throws IOException if the check fails with one.
+     */
+    public <T> T verify(Callable<T> check) throws IOException {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return check.call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, verifiers).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        verifiers.shutdownNow();
+        writers.shutdownNow();
+    }
+}
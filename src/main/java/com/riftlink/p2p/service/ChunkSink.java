@@ -0,0 +1,18 @@
+package com.riftlink.p2p.service;
+
+import java.io.IOException;
+
+/**
+ * Receives the bytes of a chunk as they stream in from a peer.
+ */
+@FunctionalInterface
+public interface ChunkSink {
+    /**
+     * Accepts the next slice of the chunk, in order.
+     * @param data The buffer holding the bytes.
+     * @param offset The start of the bytes within the buffer.
+     * @param length The number of bytes.
+     * @throws IOException if the bytes cannot be stored or the transfer should be aborted.
+     */
+    void accept(byte[] data, int offset, int length) throws IOException;
+}
@@ -0,0 +1,245 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.model.RiftFile;
+import com.riftlink.p2p.util.BufferPool;
+import com.riftlink.p2p.util.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * A content-addressed index of the verified chunks on local disk, keyed by chunk hash.
+ * <p>
+ * Chunks are not copied into a separate store: each entry references the files that hold a
+ * verified copy of the chunk, such as shared files and running downloads. An entry lists every
+ * location of the chunk and disappears with the last of them. A file that moves, such as a
+ * completed download, is registered again under its new path. Before fetching a chunk over the
+ * network, a download asks the store for a local copy, so files that share content with
+ * something already on disk only transfer the difference.
+ * Copies are re-verified when read, so a file changed behind our back is never trusted.
+ * <p>
+ * The store also answers uploads for files that are not shared, such as running downloads,
+ * which serve exactly the chunks they have verified so far.
+ */
+public class ChunkStore {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkStore.class);
+
+    private final Map<String, Source> sources = new HashMap<>();
+    private final Map<String, List<Location>> chunks = new HashMap<>();
+
+    /**
+     * A file holding verified chunks.
+     */
+    private static class Source {
+        final RiftFile riftFile;
+        final BitSet held;
+        // Chunks added after registration, in order; positions in it are HAVE sequence numbers.
+        final List<Integer> haveLog = new ArrayList<>();
+        // Offsets the sequence numbers, so numbers handed out by an earlier registration are recognised as stale.
+        final int sequenceBase = ThreadLocalRandom.current().nextInt(1 << 30);
+        final Path path;
+
+        Source(RiftFile riftFile, Path path) {
+            this.riftFile = riftFile;
+            this.held = new BitSet(riftFile.getNumberOfChunks());
+            this.path = path;
+        }
+    }
+
+    private record Location(Source source, int chunkIndex) {}
+
+    /**
+     * @return The key a download's verified chunks are registered under, distinct from the key of a shared copy of the same file.
+     */
+    public static String downloadKey(String infohash) {
+        return "download/" + infohash;
+    }
+
+    /**
+     * Registers a file, referencing some or all of its chunks.
+     * Registering a key again replaces the previous registration.
+     * @param key Identifies the file, usually its infohash.
+     * @param path Where the file is on disk.
+     * @param riftFile The file's metadata.
+     * @param verifiedChunks The chunks known to be verified on disk, or null if all of them are.
+     */
+    public synchronized void register(String key, Path path, RiftFile riftFile, BitSet verifiedChunks) {
+        unregister(key);
+        Source source = new Source(riftFile, path);
+        sources.put(key, source);
+        int total = riftFile.getNumberOfChunks();
+        for (int i = 0; i < total; i++) {
+            if (verifiedChunks == null || verifiedChunks.get(i)) {
+                addLocation(source, i);
+            }
+        }
+    }
+
+    /**
+     * References one more verified chunk of a registered file.
+     */
+    public synchronized void addChunk(String key, int chunkIndex) {
+        Source source = sources.get(key);
+        if (source != null && !source.held.get(chunkIndex)) {
+            addLocation(source, chunkIndex);
+            source.haveLog.add(chunkIndex);
+        }
+    }
+
+    /**
+     * Reports the chunks a registered file holds, for peers deciding what to request from us.
+     * @param key The file to report on.
+     * @param since A sequence number from an earlier update, or -1 for the whole bitfield.
+     * @return The chunks gained since {@code since}, or the whole bitfield if {@code since} is -1
+     *         or stale; null if nothing is registered under the key.
+     */
+    public synchronized HaveUpdate haves(String key, int since) {
+        Source source = sources.get(key);
+        if (source == null) {
+            return null;
+        }
+        int sequence = source.sequenceBase + source.haveLog.size();
+        if (since < source.sequenceBase || since > sequence) {
+            return new HaveUpdate(true, sequence, (BitSet) source.held.clone());
+        }
+        BitSet gained = new BitSet();
+        source.haveLog.subList(since - source.sequenceBase, source.haveLog.size()).forEach(gained::set);
+        return new HaveUpdate(false, sequence, gained);
+    }
+
+    /**
+     * Drops every reference held by a file.
+     */
+    public synchronized void unregister(String key) {
+        Source source = sources.remove(key);
+        if (source == null) {
+            return;
+        }
+        List<String> hashes = source.riftFile.chunkHashes();
+        for (int i = 0; i < hashes.size(); i++) {
+            removeLocation(hashes.get(i), new Location(source, i));
+        }
+    }
+
+    /**
+     * @return The metadata of a registered file, or null if nothing is registered under the key.
+     */
+    public synchronized RiftFile getRiftFile(String key) {
+        Source source = sources.get(key);
+        return source == null ? null : source.riftFile;
+    }
+
+    /**
+     * Finds the file holding a verified chunk of a registered file, for serving it to peers
+     * straight from disk; peers verify every chunk themselves.
+     * @param key The registered file.
+     * @param chunkIndex The chunk to serve.
+     * @return The file the chunk lies in, or null if the file is not registered or has not verified the chunk.
+     */
+    public synchronized Path locate(String key, int chunkIndex) {
+        Source source = sources.get(key);
+        return source == null || chunkIndex < 0 || !source.held.get(chunkIndex) ? null : source.path;
+    }
+
+    /**
+     * Streams a verified local copy of a chunk into a sink through a pooled buffer, hashing it on
+     * the way. Copies that turn out to be stale are dropped from the index and the next one is tried,
+     * so the sink may receive several partial copies; only the last one streamed counts, and only
+     * when this returns true.
+     * @param chunkHash The hash of the chunk.
+     * @param sinks Supplies a fresh sink, positioned at the start of the chunk, for every copy tried.
+     * @return true if an intact copy was streamed, false if no referenced file holds one.
+     * @throws IOException if a sink fails.
+     */
+    public boolean copy(String chunkHash, Supplier<ChunkSink> sinks) throws IOException {
+        List<Location> candidates;
+        synchronized (this) {
+            List<Location> locations = chunks.get(chunkHash);
+            if (locations == null) {
+                return false;
+            }
+            candidates = new ArrayList<>(locations);
+        }
+        for (Location location : candidates) {
+            if (copyLocation(location, chunkHash, sinks.get())) {
+                return true;
+            }
+            // The file was changed or removed behind our back; stop referencing it.
+            logger.debug("Dropping stale copy of chunk {} in {}", chunkHash, location.source().path);
+            synchronized (this) {
+                removeLocation(chunkHash, location);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the location held an intact copy, which has been streamed into the sink.
+     * @throws IOException if the sink fails; failures reading the location just return false.
+     */
+    private boolean copyLocation(Location location, String chunkHash, ChunkSink sink) throws IOException {
+        RiftFile riftFile = location.source().riftFile;
+        long position = riftFile.getChunkOffset(location.chunkIndex());
+        long end = position + riftFile.getChunkLength(location.chunkIndex());
+        MessageDigest digest = Hashing.newSha256Digest();
+        FileChannel channel = openQuietly(location.source().path);
+        if (channel == null) {
+            return false;
+        }
+        try (channel; BufferPool.Lease lease = BufferPool.acquire()) {
+            ByteBuffer buffer = lease.buffer();
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read;
+                try {
+                    read = channel.read(buffer, position);
+                } catch (IOException e) {
+                    return false;
+                }
+                if (read < 0) {
+                    return false;
+                }
+                digest.update(lease.array(), 0, read);
+                sink.accept(lease.array(), 0, read);
+                position += read;
+            }
+        }
+        return Hashing.finish(digest).equals(chunkHash);
+    }
+
+    private static FileChannel openQuietly(Path path) {
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void addLocation(Source source, int chunkIndex) {
+        Location location = new Location(source, chunkIndex);
+        source.held.set(chunkIndex);
+        List<Location> locations = chunks.computeIfAbsent(source.riftFile.chunkHashes().get(chunkIndex), h -> new ArrayList<>(1));
+        if (!locations.contains(location)) {
+            locations.add(location);
+        }
+    }
+
+    private void removeLocation(String chunkHash, Location location) {
+        List<Location> locations = chunks.get(chunkHash);
+        if (locations != null && locations.remove(location)) {
+            location.source().held.clear(location.chunkIndex());
+            if (locations.isEmpty()) {
+                chunks.remove(chunkHash);
+            }
+        }
+    }
+}
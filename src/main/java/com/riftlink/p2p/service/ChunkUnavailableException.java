@@ -0,0 +1,23 @@
+package com.riftlink.p2p.service;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a peer answers a chunk request by saying it does not hold the chunk.
+ * Unlike other I/O failures this tells us something about the peer's contents,
+ * not about the health of the connection.
+ */
+public class ChunkUnavailableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int chunkIndex;
+
+    public ChunkUnavailableException(String message, int chunkIndex) {
+        super(message);
+        this.chunkIndex = chunkIndex;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+}
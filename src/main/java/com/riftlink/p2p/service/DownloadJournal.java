@@ -0,0 +1,274 @@
+package com.riftlink.p2p.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.riftlink.p2p.model.RiftFile;
+import com.riftlink.p2p.util.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * The persistent state of a download: its metadata plus a bitfield of verified chunks.
+ * <p>
+ * The metadata is written once, on the first checkpoint; later checkpoints replace only the
+ * bitfield, kept in a file of its own, so their cost does not grow with the number of chunk
+ * hashes. Checkpoints are periodic rather than per chunk. The output file is forced to disk
+ * before each checkpoint, so a chunk is only ever recorded as verified once its data is
+ * durable; a crash loses at most the chunks completed since the last checkpoint.
+ * Both files are replaced atomically, so a crash mid-write leaves the previous one intact.
+ */
+public class DownloadJournal {
+    private static final Logger logger = LoggerFactory.getLogger(DownloadJournal.class);
+    private static final Gson gson = new Gson();
+
+    private final Path journalPath;
+    private final Path bitfieldPath;
+    private final String infohash;
+    private final RiftFile riftFile;
+    private final BitSet verifiedChunks;
+    private final boolean resumed;
+    // Locks rather than monitors: a checkpoint blocks on disk, and virtual threads recording
+    // chunks must neither pin their carriers nor wait for it. The bitfield is copied under
+    // stateLock and written under checkpointLock alone.
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private boolean dirty;
+    // Guarded by checkpointLock.
+    private boolean metadataWritten;
+    private long lastCheckpoint = System.currentTimeMillis();
+
+    /**
+     * The on-disk JSON representation of a journal.
+     */
+    private record State(String infohash, RiftFile riftFile) {}
+
+    private DownloadJournal(Path journalPath, String infohash, RiftFile riftFile, BitSet verifiedChunks, boolean resumed) {
+        this.journalPath = journalPath;
+        this.bitfieldPath = bitfieldPath(journalPath);
+        this.infohash = infohash;
+        this.riftFile = riftFile;
+        this.verifiedChunks = verifiedChunks;
+        this.resumed = resumed;
+        // A new journal is written on the first checkpoint so the download can be replayed after a crash.
+        this.dirty = !resumed;
+        this.metadataWritten = resumed;
+    }
+
+    private static Path journalPath(Path directory, String infohash) {
+        return directory.resolve(infohash + Constants.JOURNAL_EXTENSION);
+    }
+
+    private static Path bitfieldPath(Path journalPath) {
+        return journalPath.resolveSibling(journalPath.getFileName() + Constants.JOURNAL_BITFIELD_EXTENSION);
+    }
+
+    /**
+     * Loads the journal of a download, or starts a new one if none exists or the existing one
+     * belongs to different metadata.
+     * @param directory The downloads directory.
+     * @param infohash The infohash of the download.
+     * @param riftFile The metadata of the download.
+     * @return The journal for the download.
+     */
+    public static DownloadJournal openOrCreate(Path directory, String infohash, RiftFile riftFile) {
+        Path journalPath = journalPath(directory, infohash);
+        DownloadJournal existing = load(journalPath);
+        if (existing != null && existing.riftFile.equals(riftFile)) {
+            logger.info("Resuming download {} with {}/{} verified chunks",
+                infohash, existing.verifiedCount(), riftFile.getNumberOfChunks());
+            return existing;
+        }
+        return new DownloadJournal(journalPath, infohash, riftFile, new BitSet(riftFile.getNumberOfChunks()), false);
+    }
+
+    /**
+     * Finds every unfinished download recorded in the downloads directory.
+     * @param directory The downloads directory.
+     * @return The journals of all unfinished downloads.
+     */
+    public static List<DownloadJournal> loadAll(Path directory) {
+        List<DownloadJournal> journals = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(directory)) {
+            paths.filter(path -> path.toString().endsWith(Constants.JOURNAL_EXTENSION))
+                .map(DownloadJournal::load)
+                .filter(Objects::nonNull)
+                .forEach(journals::add);
+        } catch (IOException e) {
+            logger.error("Could not read downloads directory for journals", e);
+        }
+        return journals;
+    }
+
+    private static DownloadJournal load(Path journalPath) {
+        if (!Files.exists(journalPath)) {
+            return null;
+        }
+        try {
+            State state = gson.fromJson(Files.readString(journalPath, StandardCharsets.UTF_8), State.class);
+            Objects.requireNonNull(state.riftFile());
+            // A crash between writing the metadata and the first bitfield leaves no bitfield.
+            Path bitfieldPath = bitfieldPath(journalPath);
+            BitSet verified = Files.exists(bitfieldPath) ? BitSet.valueOf(Files.readAllBytes(bitfieldPath)) : new BitSet();
+            return new DownloadJournal(journalPath, state.infohash(), state.riftFile(), verified, true);
+        } catch (IOException | JsonParseException | NullPointerException e) {
+            logger.warn("Ignoring unreadable download journal: {}", journalPath, e);
+            return null;
+        }
+    }
+
+    public String getInfohash() {
+        return infohash;
+    }
+
+    public RiftFile getRiftFile() {
+        return riftFile;
+    }
+
+    /**
+     * @return true if this journal was loaded from disk, meaning the output file may already
+     *         hold data for chunks that are not yet recorded as verified.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return A copy of the verified chunk bitfield.
+     */
+    public BitSet getVerifiedChunks() {
+        stateLock.lock();
+        try {
+            return (BitSet) verifiedChunks.clone();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    public int verifiedCount() {
+        stateLock.lock();
+        try {
+            return verifiedChunks.cardinality();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Records a chunk as verified. The change is persisted by the next checkpoint.
+     */
+    public void markVerified(int chunkIndex) {
+        stateLock.lock();
+        try {
+            verifiedChunks.set(chunkIndex);
+            dirty = true;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Persists the journal if it has changed and the checkpoint interval has passed. Unless
+     * forced, returns at once if another checkpoint is already in progress.
+     * @param output The download's output file, forced to disk before the journal is written.
+     * @param force If true, checkpoint regardless of the interval.
+     * @throws IOException if the output file or the journal cannot be written.
+     */
+    public void checkpoint(FileChannel output, boolean force) throws IOException {
+        if (force) {
+            checkpointLock.lock();
+        } else if (!checkpointLock.tryLock()) {
+            // Another checkpoint is being written; whatever it missed is picked up by the next one.
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            BitSet snapshot;
+            stateLock.lock();
+            try {
+                if (!dirty || (!force && now - lastCheckpoint < Constants.JOURNAL_CHECKPOINT_INTERVAL_MS)) {
+                    return;
+                }
+                // Taken before the force, so every chunk in the snapshot has its data on disk.
+                snapshot = (BitSet) verifiedChunks.clone();
+                dirty = false;
+                lastCheckpoint = now;
+            } finally {
+                stateLock.unlock();
+            }
+
+            try {
+                output.force(false);
+                if (!metadataWritten) {
+                    // A bitfield left by a journal for other metadata must not be paired with this one.
+                    Files.deleteIfExists(bitfieldPath);
+                    replace(journalPath, gson.toJson(new State(infohash, riftFile)).getBytes(StandardCharsets.UTF_8));
+                    metadataWritten = true;
+                }
+                replace(bitfieldPath, snapshot.toByteArray());
+            } catch (IOException e) {
+                markDirty();
+                throw e;
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    private static void replace(Path path, byte[] content) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tempPath, content);
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void markDirty() {
+        stateLock.lock();
+        try {
+            dirty = true;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the journal once the download has completed or been cancelled.
+     */
+    public void delete() {
+        checkpointLock.lock();
+        try {
+            deleteFiles(journalPath);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the journal of a download that is not running, without loading it.
+     * @param directory The downloads directory.
+     * @param infohash The infohash of the download.
+     */
+    public static void delete(Path directory, String infohash) {
+        deleteFiles(journalPath(directory, infohash));
+    }
+
+    private static void deleteFiles(Path journalPath) {
+        try {
+            Files.deleteIfExists(journalPath);
+            Files.deleteIfExists(bitfieldPath(journalPath));
+        } catch (IOException e) {
+            logger.error("Failed to delete download journal: {}", journalPath, e);
+        }
+    }
+}
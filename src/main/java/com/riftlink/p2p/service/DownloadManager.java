@@ -2,44 +2,144 @@ package com.riftlink.p2p.service;
 
 import com.riftlink.p2p.model.RiftFile;
 import com.riftlink.p2p.ui.model.DownloadItem;
-import com.riftlink.p2p.util.Hashing;
+import com.riftlink.p2p.util.BufferPool;
 import com.riftlink.p2p.util.Constants;
+import com.riftlink.p2p.util.Hashing;
+import com.riftlink.p2p.util.ThreadPools;
 import net.tomp2p.peers.PeerAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.SSLSocket;
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
 
 public class DownloadManager {
     private static final Logger logger = LoggerFactory.getLogger(DownloadManager.class);
-    private final ExecutorService downloadExecutor = Executors.newFixedThreadPool(10);
+    // Unbounded: concurrency is governed by the per-peer request windows, not by the pool size.
+    // Each blocking chunk request gets its own (virtual) thread.
+    private final ExecutorService downloadExecutor = ThreadPools.newIoExecutor("download");
     private final P2PService p2pService;
     private final SecurityService securityService;
     private final FileManager fileManager;
     private final Path downloadsDirectory;
+    private final PeerConnectionPool connectionPool;
+    private final ChunkStore chunkStore;
+    private final BandwidthManager bandwidthManager;
+    private final PeerWindows peerWindows = new PeerWindows();
+    private final PeerScoreboard scoreboard = new PeerScoreboard();
+    private final ProgressSampler progressSampler = new ProgressSampler();
+    private final ChunkPipeline pipeline = new ChunkPipeline();
+    // Durations of recent single-peer chunk requests, for deciding when to hedge.
+    private final LatencyTracker requestLatency = new LatencyTracker(Constants.LATENCY_SAMPLE_WINDOW, Constants.HEDGE_MIN_SAMPLES);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "download-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
 
+    // Every download that has not finished yet, whether queued or started.
     private final ConcurrentMap<String, DownloadTask> activeDownloads = new ConcurrentHashMap<>();
+    // Downloads waiting to start, in the order they will start. Guarded by itself.
+    private final List<DownloadTask> queue = new ArrayList<>();
+    private volatile int maxActiveDownloads = Constants.MAX_ACTIVE_DOWNLOADS;
+    private volatile int retryBudget = Constants.DEFAULT_RETRY_BUDGET;
+
+    /**
+     * A failed chunk waiting out its backoff before it goes back to the picker.
+     */
+    private record ChunkRetry(int chunkIndex, long dueNanos) implements Delayed {
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * What one peer contributed to a chunk fetched in blocks. Its outcome is only fed into the
+     * scoreboard and its request window once the whole chunk has been verified.
+     */
+    private record BlockWork(PeerAddress peer, long delivered, long latencyNanos, long durationNanos, boolean failed) {}
+
+    /**
+     * A chunk assembled from several peers' blocks that failed verification: who sent each block
+     * and what each block hashed to. Once a good copy is in place, the peers whose blocks differ
+     * from it are the ones that sent corrupt data.
+     */
+    private record SuspectBlocks(PeerAddress[] sources, List<String> hashes) {}
 
     /**
      * Inner class to hold the state and future of an active download.
      */
     private static class DownloadTask {
-        // 'volatile' ensures that changes to this variable are visible across threads.
+        final String infohash;
+        final RiftFile riftFile;
+        final ProgressSampler.Meter meter;
+        final TransferRegistry transfers = new TransferRegistry();
+        final ChunkAvailability availability = new ChunkAvailability();
+
+        // 'volatile' ensures that changes to these variables are visible across threads.
         volatile CompletableFuture<Void> mainFuture;
+        volatile DownloadJournal journal;
+        volatile PiecePicker picker;
+        volatile DownloadOutput output;
+        // The chunk a streaming reader needs next, or -1 while nobody streams the download.
+        volatile int playhead = -1;
+        // Higher priorities leave the queue first. Both fields are guarded by the queue's lock.
+        int priority;
+        boolean started;
         final AtomicBoolean paused = new AtomicBoolean(false);
         final AtomicBoolean cancelled = new AtomicBoolean(false);
+        // Set once the partially downloaded file has been announced in the DHT.
+        final AtomicBoolean announced = new AtomicBoolean(false);
+        // Peers holding only part of the file, with the HAVE sequence number we have caught up to.
+        final ConcurrentMap<PeerAddress, Integer> haveSequences = new ConcurrentHashMap<>();
+        final AtomicBoolean pollingHaves = new AtomicBoolean(false);
+        volatile long lastHavePoll;
+        // Failed chunks waiting to be retried, the failures per chunk, and the failures left before the download gives up.
+        // Every completed chunk earns one retry back, up to the budget, so only failures without progress add up.
+        final DelayQueue<ChunkRetry> retries = new DelayQueue<>();
+        final ConcurrentMap<Integer, Integer> chunkFailures = new ConcurrentHashMap<>();
+        final AtomicInteger retriesLeft = new AtomicInteger();
+        volatile int retryBudget;
+        volatile SwarmTracker swarm;
+        // Chunks whose block-wise assembly failed verification, until a good copy shows whose blocks were bad.
+        final ConcurrentMap<Integer, SuspectBlocks> suspectBlocks = new ConcurrentHashMap<>();
+        // A Lock rather than a monitor, so a virtual thread parked here doesn't pin its carrier.
+        private final Lock pauseLock = new ReentrantLock();
+        private final Condition resumed = pauseLock.newCondition();
 
-        // Constructor is now empty.
-        DownloadTask() {}
+        DownloadTask(String infohash, RiftFile riftFile, ProgressSampler.Meter meter) {
+            this.infohash = infohash;
+            this.riftFile = riftFile;
+            this.meter = meter;
+        }
 
         // Setter to associate the future after creation.
         void setMainFuture(CompletableFuture<Void> mainFuture) {
@@ -48,6 +148,9 @@ public class DownloadManager {
 
         void cancel() {
             cancelled.set(true);
+            // Closing the sockets unblocks in-flight reads, so their threads are freed right away.
+            transfers.abortAll();
+            wakeUp();
             if (mainFuture != null) {
                 mainFuture.cancel(true);
             }
@@ -55,144 +158,1267 @@ public class DownloadManager {
 
         void pause() {
             paused.set(true);
+            // In-flight chunks are abandoned and go back to the picker; verified chunks are kept.
+            transfers.abortAll();
         }
 
         void resume() {
             paused.set(false);
+            wakeUp();
+        }
+
+        /**
+         * @return true while the download is paused or cancelled and should not transfer anything.
+         */
+        boolean isHalted() {
+            return paused.get() || cancelled.get();
+        }
+
+        /**
+         * Blocks while the download is paused. Returns as soon as it is resumed or cancelled.
+         */
+        void awaitResume() throws InterruptedException {
+            pauseLock.lock();
+            try {
+                while (paused.get() && !cancelled.get()) {
+                    resumed.await();
+                }
+            } finally {
+                pauseLock.unlock();
+            }
+        }
+
+        private void wakeUp() {
+            pauseLock.lock();
+            try {
+                resumed.signalAll();
+            } finally {
+                pauseLock.unlock();
+            }
         }
     }
 
-    public DownloadManager(P2PService p2pService, SecurityService securityService, FileManager fileManager, Path downloadsDirectory) {
+    public DownloadManager(P2PService p2pService, SecurityService securityService, FileManager fileManager,
+                           Path downloadsDirectory, BandwidthManager bandwidthManager) {
         this.p2pService = p2pService;
         this.securityService = securityService;
         this.fileManager = fileManager;
         this.downloadsDirectory = downloadsDirectory;
+        this.connectionPool = new PeerConnectionPool(securityService, scoreboard);
+        this.chunkStore = fileManager.getChunkStore();
+        this.bandwidthManager = bandwidthManager;
     }
 
+    /**
+     * Queues a download with the default priority. It starts as soon as an active slot is free.
+     */
     public void startDownload(RiftFile riftFile, String infohash, DownloadItem downloadItem) {
-        // 1. Create the task and add it to the map immediately.
-        DownloadTask task = new DownloadTask();
-        activeDownloads.put(infohash, task);
+        startDownload(riftFile, infohash, downloadItem, Constants.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Queues a download. It starts once fewer than the maximum number of downloads are active
+     * and no queued download ahead of it is waiting. Until then it holds no threads or connections.
+     * @param priority Downloads with a higher priority are queued ahead of those with a lower one.
+     */
+    public void startDownload(RiftFile riftFile, String infohash, DownloadItem downloadItem, int priority) {
+        DownloadTask task = new DownloadTask(infohash, riftFile, progressSampler.track(downloadItem, riftFile.totalSize()));
+        if (activeDownloads.putIfAbsent(infohash, task) != null) {
+            progressSampler.untrack(task.meter);
+            logger.warn("Download for {} is already queued or running", infohash);
+            return;
+        }
+        task.meter.setStatus("Queued");
+        synchronized (queue) {
+            task.priority = priority;
+            insertByPriority(task);
+        }
+        startQueuedDownloads();
+    }
+
+    /**
+     * Starts queued downloads, in queue order, until the active limit is reached.
+     * Paused downloads neither count towards the limit nor leave the queue.
+     */
+    private void startQueuedDownloads() {
+        List<DownloadTask> toStart = new ArrayList<>();
+        synchronized (queue) {
+            long active = activeDownloads.values().stream().filter(t -> t.started && !t.paused.get()).count();
+            var iterator = queue.iterator();
+            while (active < maxActiveDownloads && iterator.hasNext()) {
+                DownloadTask task = iterator.next();
+                if (task.paused.get()) continue;
+                iterator.remove();
+                task.started = true;
+                toStart.add(task);
+                active++;
+            }
+        }
+        toStart.forEach(this::runDownload);
+    }
 
-        // 2. Define the main future (the download logic).
+    private void runDownload(DownloadTask task) {
+        String infohash = task.infohash;
+        RiftFile riftFile = task.riftFile;
         CompletableFuture<Void> mainFuture = CompletableFuture.runAsync(() -> {
+            task.journal = DownloadJournal.openOrCreate(downloadsDirectory, infohash, riftFile);
+            task.retryBudget = retryBudget;
+            task.retriesLeft.set(retryBudget);
             try {
                 if (task.cancelled.get()) return;
-                downloadItem.setStatus("Finding peers...");
+                PiecePicker picker = new PiecePicker(riftFile.getNumberOfChunks(), scoreboard);
+                task.picker = picker;
+                picker.setPlayhead(task.playhead);
 
-                Collection<PeerAddress> peers = p2pService.findPeers(infohash).get();
-                if (peers.isEmpty()) throw new RuntimeException("No peers found");
-                List<PeerAddress> peerList = new ArrayList<>(peers);
+                try (DownloadOutput output = new DownloadOutput(fileManager.openDownloadFile(riftFile), riftFile)) {
+                    task.output = output;
 
-                Path chunkDir = downloadsDirectory.resolve(infohash);
-                Files.createDirectories(chunkDir);
+                    // Replay the journal so only missing chunks are fetched.
+                    BitSet verified = task.journal.getVerifiedChunks();
+                    verified.stream().forEach(i -> {
+                        output.claim(i);
+                        picker.markCompleted(i);
+                        task.availability.markAvailable(i);
+                        task.meter.addCompleted(riftFile.getChunkLength(i));
+                    });
+                    chunkStore.register(ChunkStore.downloadKey(infohash), fileManager.getPartialFilePath(riftFile), riftFile, verified);
 
-                downloadItem.setStatus("Downloading...");
-                int totalChunks = riftFile.getNumberOfChunks();
-                AtomicInteger completedChunks = new AtomicInteger(0);
+                    try {
+                        copyLocalChunks(task);
+                        task.journal.checkpoint(output.channel(), true);
+                        if (picker.completedCount() > 0) {
+                            announcePartial(task);
+                        }
 
-                List<CompletableFuture<Void>> chunkFutures = new ArrayList<>();
-                for (int i = 0; i < totalChunks; i++) {
-                    if (task.cancelled.get()) break;
+                        if (!picker.isComplete()) {
+                            task.meter.setStatus("Finding peers...");
+                            task.swarm = trackSwarm(task);
+                            task.swarm.refresh().get();
+                            if (task.swarm.size() == 0) throw new RuntimeException("No peers found");
+                            task.swarm.start(scheduler);
+                            task.meter.setStatus("Downloading...");
+                            scheduleChunks(task);
+                        }
 
-                    while (task.paused.get()) {
-                        Thread.sleep(500); // Wait while paused
-                        if (task.cancelled.get()) return;
-                    }
-
-                    final int chunkIndex = i;
-                    CompletableFuture<Void> future = downloadChunk(peerList, infohash, riftFile, chunkIndex, chunkDir)
-                        .thenRun(() -> {
-                            int completed = completedChunks.incrementAndGet();
-                            downloadItem.setProgress((double) completed / totalChunks);
-                        });
-                    chunkFutures.add(future);
-                }
+                        if (task.cancelled.get()) {
+                            task.meter.setStatus("Cancelled");
+                            return;
+                        }
 
-                CompletableFuture.allOf(chunkFutures.toArray(new CompletableFuture[0])).get();
-
-                if (task.cancelled.get()) {
-                    downloadItem.setStatus("Cancelled");
-                    return;
+                        if (!picker.isComplete()) {
+                            throw new RuntimeException("No peer holds the remaining chunks");
+                        }
+                        output.channel().force(true);
+                    } finally {
+                        checkpointQuietly(task);
+                    }
                 }
 
-                downloadItem.setStatus("Reassembling...");
-                fileManager.reassembleFile(riftFile, infohash);
-                downloadItem.setStatus("Completed");
-                downloadItem.setProgress(1.0);
+                Path finalPath = fileManager.completeDownloadFile(riftFile);
+                seedInPlace(task, finalPath);
+                task.journal.delete();
+                task.meter.setStatus("Completed");
 
             } catch (Exception e) {
                 if (e instanceof InterruptedException || e instanceof CancellationException) {
                     Thread.currentThread().interrupt();
-                    downloadItem.setStatus("Cancelled");
+                    task.meter.setStatus("Cancelled");
                 } else {
                     logger.error("Download failed for infohash: " + infohash, e);
-                    downloadItem.setStatus("Error: " + e.getMessage());
+                    task.meter.setStatus("Error: " + e.getMessage());
                 }
             } finally {
+                if (task.swarm != null) task.swarm.stop();
                 activeDownloads.remove(infohash);
+                progressSampler.untrack(task.meter);
+                // Readers waiting for chunks that will never come must not hang.
+                task.availability.fail("the download stopped");
+                startQueuedDownloads();
+                if (task.cancelled.get()) {
+                    // A cancelled download should not be replayed on the next start.
+                    task.journal.delete();
+                    withdrawPartial(task);
+                    fileManager.discardDownloadFile(riftFile);
+                }
             }
-        });
+        }, downloadExecutor);
 
-        // 3. Now that mainFuture exists, link it to the task.
         task.setMainFuture(mainFuture);
     }
 
+    /**
+     * Schedules chunk transfers until the download is complete, cancelled, or cannot progress.
+     * At most {@link Constants#MAX_CHUNKS_IN_FLIGHT} chunks are in flight at once. Nothing is
+     * committed ahead of time: each chunk is picked only once both a window slot and a peer slot
+     * are free, from the chunks that peer can serve, so the current rarity, peer set and playhead
+     * decide what goes next. Pausing aborts every in-flight transfer; the abandoned chunks return
+     * to the picker and scheduling starts over once the download is resumed.
+     */
+    private void scheduleChunks(DownloadTask task) throws Exception {
+        PiecePicker picker = task.picker;
+        InFlightWindow window = new InFlightWindow(Constants.MAX_CHUNKS_IN_FLIGHT);
+        while (!picker.isComplete() && !task.cancelled.get()) {
+            if (task.paused.get()) {
+                task.meter.setStatus("Paused");
+                checkpointQuietly(task);
+                task.awaitResume();
+                if (task.cancelled.get()) return;
+                task.meter.setStatus("Downloading...");
+            }
+
+            Set<Integer> duplicated = new HashSet<>();
+            while (!task.isHalted()) {
+                throwIfFailed(window);
+                releaseDueRetries(task);
+                if (!window.tryAcquire()) {
+                    advanceEndgame(task, duplicated);
+                    window.awaitChange(Constants.ENDGAME_POLL_INTERVAL_MS);
+                    continue;
+                }
+                // Only chunks a peer with a free request slot holds are picked, so busy peers never stall idle ones.
+                int chunkIndex = picker.nextChunk(peerWindows::hasRoom);
+                PeerAddress peer = chunkIndex < 0 ? null : peerWindows.tryAcquireAny(picker.peersFor(chunkIndex));
+                if (peer == null) {
+                    if (chunkIndex >= 0) {
+                        // Another download took the last free slot in the meantime.
+                        picker.markFailed(chunkIndex);
+                    }
+                    window.release(null);
+                    // Running transfers may still fail and hand their chunks back.
+                    if (window.inFlight() == 0 && !picker.hasFetchableChunk()) break;
+                    advanceEndgame(task, duplicated);
+                    peerWindows.awaitRelease(Constants.ENDGAME_POLL_INTERVAL_MS);
+                    continue;
+                }
+                downloadChunk(task, chunkIndex, peer).whenComplete((ignored, error) -> window.release(error));
+            }
+
+            // A cancelled download doesn't wait; its aborted transfers wind down on their own.
+            while (window.inFlight() > 0 && !task.cancelled.get()) {
+                advanceEndgame(task, duplicated);
+                window.awaitChange(Constants.ENDGAME_POLL_INTERVAL_MS);
+            }
+            throwIfFailed(window);
+
+            if (task.isHalted() || picker.isComplete()) {
+                continue;
+            }
+            if (!task.retries.isEmpty()) {
+                awaitRetry(task);
+            } else if (!awaitHolders(task)) {
+                throw new RuntimeException("No peer holds the remaining chunks");
+            }
+        }
+    }
+
+    private static void throwIfFailed(InFlightWindow window) throws Exception {
+        Throwable failure = window.failure();
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        if (failure instanceof Exception e) throw e;
+        if (failure != null) throw new ExecutionException(failure);
+    }
+
+    /**
+     * Asks every peer which chunks it holds and registers it with the picker, so chunks are only
+     * requested from peers that have them. Peers that only hold part of the file are polled for
+     * the chunks they gain from then on.
+     */
+    private void addPeers(DownloadTask task, Collection<PeerAddress> peers) {
+        CompletableFuture.allOf(peers.stream()
+            .map(peer -> CompletableFuture.runAsync(() -> addPeer(task, peer), downloadExecutor))
+            .toArray(CompletableFuture[]::new)).join();
+    }
+
+    private void addPeer(DownloadTask task, PeerAddress peer) {
+        HaveUpdate update;
+        try {
+            update = requestHaves(task, peer, -1);
+        } catch (IOException e) {
+            // Peers that cannot tell us their chunks only announce files they share in full.
+            logger.debug("No chunk list from peer {}, assuming it holds the whole file: {}", peer, e.getMessage());
+            task.picker.addPeer(peer, null);
+            return;
+        }
+        if (update == null) {
+            logger.debug("Peer {} does not serve {}", peer, task.riftFile.filename());
+            return;
+        }
+        task.picker.addPeer(peer, update.chunks());
+        if (!task.picker.holdsAll(peer)) {
+            task.haveSequences.put(peer, update.sequence());
+        }
+    }
+
+    /**
+     * Starts a round of HAVE polls in the background if the last one is old enough.
+     */
+    private void pollHaves(DownloadTask task) {
+        if (task.haveSequences.isEmpty()
+            || System.currentTimeMillis() - task.lastHavePoll < Constants.HAVE_POLL_INTERVAL_MS
+            || !task.pollingHaves.compareAndSet(false, true)) {
+            return;
+        }
+        task.lastHavePoll = System.currentTimeMillis();
+        CompletableFuture.runAsync(() -> {
+            try {
+                refreshHaves(task);
+            } finally {
+                task.pollingHaves.set(false);
+            }
+        }, downloadExecutor);
+    }
+
+    /**
+     * Asks every partial peer for the chunks it has gained since its last update.
+     * @return true if some peer gained a chunk we still need.
+     */
+    private boolean refreshHaves(DownloadTask task) {
+        boolean useful = false;
+        for (Map.Entry<PeerAddress, Integer> entry : task.haveSequences.entrySet()) {
+            PeerAddress peer = entry.getKey();
+            try {
+                HaveUpdate update = requestHaves(task, peer, entry.getValue());
+                if (update == null) {
+                    // The peer stopped serving the file, for example because its download was cancelled.
+                    task.haveSequences.remove(peer);
+                    task.picker.removePeer(peer);
+                    continue;
+                }
+                useful |= task.picker.addChunks(peer, update.chunks());
+                if (task.picker.holdsAll(peer)) {
+                    task.haveSequences.remove(peer);
+                } else {
+                    task.haveSequences.put(peer, update.sequence());
+                }
+            } catch (IOException e) {
+                logger.debug("HAVE poll of peer {} failed: {}", peer, e.getMessage());
+            }
+        }
+        return useful;
+    }
+
+    /**
+     * Waits for a peer holding the chunks nobody else holds: a new peer from the DHT,
+     * or a partial peer that gains them.
+     * @return true once a chunk we still need has a holder, or the download was halted;
+     *         false if none turns up in time.
+     */
+    private boolean awaitHolders(DownloadTask task) throws InterruptedException {
+        task.meter.setStatus("Waiting for peers...");
+        for (int poll = 0; poll < Constants.MAX_IDLE_HAVE_POLLS && !task.isHalted(); poll++) {
+            task.swarm.refresh().join();
+            // Joining peers and background polls may have found new chunks already.
+            if (task.picker.missingChunks().stream().anyMatch(task.picker::hasHolder) || refreshHaves(task)) {
+                task.meter.setStatus("Downloading...");
+                return true;
+            }
+            Thread.sleep(Constants.HAVE_POLL_INTERVAL_MS);
+        }
+        return task.isHalted();
+    }
+
+    /**
+     * Requests a peer's chunk list over a pooled connection.
+     * @param since A sequence number from the peer's previous update, or -1 for its whole bitfield.
+     * @return The peer's answer, or null if it does not serve the file.
+     */
+    private HaveUpdate requestHaves(DownloadTask task, PeerAddress peer, int since) throws IOException {
+        PeerConnection connection = connectionPool.acquire(peer, scoreboard.connectTimeoutMillis(peer));
+        try {
+            int bitfieldBytes = (task.riftFile.getNumberOfChunks() + 7) / 8;
+            connection.setDeadline(scoreboard.transferDeadlineMillis(peer, bitfieldBytes));
+            HaveUpdate update = connection.requestHaves(task.infohash, since, task.riftFile.getNumberOfChunks());
+            connectionPool.release(connection);
+            return update;
+        } catch (IOException | RuntimeException e) {
+            connectionPool.invalidate(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Polls partial peers for new chunks and switches to endgame once only a few chunks remain.
+     * In endgame every missing chunk is also requested from additional peers; whichever copy
+     * verifies first is kept and the other transfers of that chunk are aborted.
+     * @param duplicated The chunks already requested from additional peers.
+     */
+    private void advanceEndgame(DownloadTask task, Set<Integer> duplicated) {
+        pollHaves(task);
+        int remaining = task.riftFile.getNumberOfChunks() - task.picker.completedCount();
+        if (remaining <= Constants.ENDGAME_CHUNK_THRESHOLD && !task.isHalted()) {
+            for (int chunkIndex : task.picker.missingChunks()) {
+                if (duplicated.add(chunkIndex)) {
+                    requestDuplicates(task, chunkIndex, Constants.ENDGAME_DUPLICATE_REQUESTS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends redundant requests for a chunk to peers that are not already transferring it
+     * and have room in their request windows.
+     */
+    private void requestDuplicates(DownloadTask task, int chunkIndex, int count) {
+        Set<PeerAddress> busy = task.transfers.peersFor(chunkIndex);
+        task.picker.peersFor(chunkIndex).stream()
+            .filter(peer -> !busy.contains(peer))
+            .filter(peerWindows::tryAcquire)
+            .limit(count)
+            .forEach(peer -> {
+                logger.debug("Endgame: requesting chunk {} from {}", chunkIndex, peer);
+                CompletableFuture.runAsync(() -> fetchDuplicate(task, chunkIndex, peer), downloadExecutor);
+            });
+    }
+
     public void pauseDownload(String infohash) {
         DownloadTask task = activeDownloads.get(infohash);
         if (task != null) {
             task.pause();
+            task.meter.setStatus("Paused");
             logger.info("Download paused for infohash: {}", infohash);
+            // The paused download frees its active slot.
+            startQueuedDownloads();
         }
     }
 
+    /**
+     * Resumes a paused download. A download that had started continues right away;
+     * one that was still queued goes back to waiting for a slot.
+     */
     public void resumeDownload(String infohash) {
         DownloadTask task = activeDownloads.get(infohash);
         if (task != null) {
+            boolean started;
+            synchronized (queue) {
+                started = task.started;
+            }
+            if (!started) {
+                task.meter.setStatus("Queued");
+            }
             task.resume();
             logger.info("Download resumed for infohash: {}", infohash);
+            startQueuedDownloads();
         }
     }
 
     public void cancelDownload(String infohash) {
         DownloadTask task = activeDownloads.get(infohash);
-        if (task != null) {
-            task.cancel();
-            logger.info("Download cancelled for infohash: {}", infohash);
+        if (task == null) {
+            return;
+        }
+        boolean wasQueued;
+        synchronized (queue) {
+            wasQueued = queue.remove(task);
+        }
+        task.cancel();
+        if (wasQueued) {
+            // Never started, so nothing else cleans up; a restored download may have data on disk.
+            activeDownloads.remove(infohash);
+            task.meter.setStatus("Cancelled");
+            progressSampler.untrack(task.meter);
+            task.availability.fail("the download was cancelled");
+            DownloadJournal.delete(downloadsDirectory, infohash);
+            chunkStore.unregister(ChunkStore.downloadKey(infohash));
+            fileManager.discardDownloadFile(task.riftFile);
+        }
+        logger.info("Download cancelled for infohash: {}", infohash);
+    }
+
+    /**
+     * Opens a channel for reading a download while it is still running, and switches the
+     * download to sequential mode: chunks are fetched in file order from wherever the channel
+     * is being read. Reads block only until the chunk they need is verified. A queued download
+     * is read once it gets its turn; a completed download should be opened from its final path.
+     * Wrap the channel with {@link java.nio.channels.Channels#newInputStream} for an {@code InputStream}.
+     * @param infohash The infohash of the download.
+     * @return A read-only channel over the whole file.
+     * @throws IOException if the download is not queued or running.
+     */
+    public SeekableByteChannel openStream(String infohash) throws IOException {
+        DownloadTask task = activeDownloads.get(infohash);
+        if (task == null) {
+            throw new IOException("No queued or running download for infohash: " + infohash);
+        }
+        return new DownloadStream(task.riftFile, task.availability, fileManager.getPartialFilePath(task.riftFile),
+            fileManager.getDownloadedFilePath(task.riftFile), chunkIndex -> {
+                task.playhead = chunkIndex;
+                PiecePicker picker = task.picker;
+                if (picker != null) {
+                    picker.setPlayhead(chunkIndex);
+                }
+            });
+    }
+
+    /**
+     * Changes how many downloads may transfer at the same time. Raising the limit starts
+     * queued downloads right away; lowering it lets running downloads finish.
+     */
+    public void setMaxActiveDownloads(int maxActiveDownloads) {
+        this.maxActiveDownloads = Math.max(1, maxActiveDownloads);
+        startQueuedDownloads();
+    }
+
+    public int getMaxActiveDownloads() {
+        return maxActiveDownloads;
+    }
+
+    /**
+     * Changes how many failed chunk attempts a download tolerates before it gives up. Each
+     * completed chunk gives one attempt back, so the budget bounds failures in a row without
+     * progress rather than over the whole download.
+     * Takes effect for downloads started or resumed from then on.
+     */
+    public void setRetryBudget(int retryBudget) {
+        this.retryBudget = Math.max(0, retryBudget);
+    }
+
+    public int getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Changes the priority of a queued download, moving it behind every download of equal or higher priority.
+     * Has no effect on downloads that have already started.
+     */
+    public void setPriority(String infohash, int priority) {
+        DownloadTask task = activeDownloads.get(infohash);
+        if (task == null) return;
+        synchronized (queue) {
+            if (queue.remove(task)) {
+                task.priority = priority;
+                insertByPriority(task);
+            }
+        }
+    }
+
+    /**
+     * Moves a queued download one place towards the front of the queue.
+     */
+    public void moveUp(String infohash) {
+        moveInQueue(infohash, -1);
+    }
+
+    /**
+     * Moves a queued download one place towards the back of the queue.
+     */
+    public void moveDown(String infohash) {
+        moveInQueue(infohash, 1);
+    }
+
+    /**
+     * @return The infohashes of the queued downloads, in the order they will start.
+     */
+    public List<String> getQueue() {
+        synchronized (queue) {
+            return queue.stream().map(task -> task.infohash).toList();
+        }
+    }
+
+    private void moveInQueue(String infohash, int offset) {
+        DownloadTask task = activeDownloads.get(infohash);
+        if (task == null) return;
+        synchronized (queue) {
+            int index = queue.indexOf(task);
+            int target = index + offset;
+            if (index < 0 || target < 0 || target >= queue.size()) return;
+            DownloadTask neighbour = queue.get(target);
+            // Take over the neighbour's priority, so later insertions respect the manual order.
+            task.priority = neighbour.priority;
+            queue.set(target, task);
+            queue.set(index, neighbour);
+        }
+    }
+
+    private void insertByPriority(DownloadTask task) {
+        int index = 0;
+        while (index < queue.size() && queue.get(index).priority >= task.priority) {
+            index++;
         }
+        queue.add(index, task);
     }
 
-    private CompletableFuture<Void> downloadChunk(List<PeerAddress> peers, String infohash, RiftFile riftFile, int chunkIndex, Path chunkDir) {
+    /**
+     * @return The bandwidth limits shared by uploads and downloads, adjustable at runtime.
+     */
+    public BandwidthManager getBandwidthManager() {
+        return bandwidthManager;
+    }
+
+    /**
+     * @return The reputation records of all peers downloaded from, for inspection.
+     */
+    public List<PeerScoreboard.PeerStats> getPeerStats() {
+        return scoreboard.getStats();
+    }
+
+    /**
+     * Restores downloads that were unfinished when the application last stopped.
+     * @param itemFactory Creates the UI item for a restored download from its metadata and infohash.
+     */
+    public void restoreDownloads(BiFunction<RiftFile, String, DownloadItem> itemFactory) {
+        for (DownloadJournal journal : DownloadJournal.loadAll(downloadsDirectory)) {
+            if (activeDownloads.containsKey(journal.getInfohash())) continue;
+            logger.info("Restoring unfinished download: {}", journal.getRiftFile().filename());
+            DownloadItem item = itemFactory.apply(journal.getRiftFile(), journal.getInfohash());
+            startDownload(journal.getRiftFile(), journal.getInfohash(), item);
+        }
+    }
+
+    private CompletableFuture<Void> downloadChunk(DownloadTask task, int chunkIndex, PeerAddress firstPeer) {
         return CompletableFuture.runAsync(() -> {
-            for (PeerAddress peer : peers) {
-                try (SSLSocket socket = securityService.createSocket(peer.inetAddress().getHostAddress(), Constants.UPLOAD_PORT);
-                     PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-                     InputStream inputStream = socket.getInputStream()) {
-                    
-                    writer.println(infohash);
-                    writer.println(chunkIndex);
-
-                    byte[] chunkData = inputStream.readAllBytes();
-                    
-                    String expectedHash = riftFile.chunkHashes().get(chunkIndex);
-                    String actualHash = Hashing.sha256(chunkData);
-
-                    if (!expectedHash.equals(actualHash)) {
-                        throw new IOException("Chunk hash mismatch for index " + chunkIndex);
-                    }
+            // Data written before a crash may already be on disk; it is only checked when its chunk comes up.
+            if (task.journal.isResumed() && verifyExistingChunk(task, chunkIndex)) {
+                peerWindows.release(firstPeer);
+                return;
+            }
+
+            // Peers with spare request slots help out, so the chunk arrives block by block from all of them.
+            boolean holdsFirstSlot = true;
+            List<PeerAddress> helpers = acquireHelpers(task, chunkIndex, firstPeer);
+            if (!helpers.isEmpty()) {
+                if (fetchChunkInBlocks(task, chunkIndex, firstPeer, helpers)) return;
+                holdsFirstSlot = false;
+            }
+
+            // The dispatcher reserved a slot with the first peer; fallback peers need a free slot of their own.
+            // Fallbacks are ordered now, so their load reflects the other in-flight requests.
+            List<PeerAddress> candidates = new ArrayList<>();
+            candidates.add(firstPeer);
+            task.picker.peersFor(chunkIndex).stream()
+                .filter(peer -> !peer.equals(firstPeer))
+                .forEach(candidates::add);
 
-                    Path chunkPath = chunkDir.resolve("chunk_" + chunkIndex);
-                    Files.write(chunkPath, chunkData);
-                    return;
-                } catch (Exception e) {
-                    logger.warn("Failed to download chunk {} from peer {}. Reason: {}", chunkIndex, peer, e.getMessage());
+            boolean tried = false;
+            for (PeerAddress peer : candidates) {
+                if (peer == firstPeer && holdsFirstSlot) {
+                    if (task.isHalted()) {
+                        peerWindows.release(peer);
+                        break;
+                    }
+                } else if (task.isHalted() || !peerWindows.tryAcquire(peer)) {
+                    continue;
                 }
+                tried = true;
+                if (fetchHedged(task, chunkIndex, peer)) return;
+            }
+            if (task.output.isClaimed(chunkIndex)) return;
+            if (task.isHalted() || !tried) {
+                // Paused or cancelled, or every holder was busy: no peer refused the chunk,
+                // so hand it back rather than spending the retry budget on it.
+                task.picker.markFailed(chunkIndex);
+                return;
             }
-            throw new RuntimeException("Could not download chunk " + chunkIndex + " from any peer.");
+            scheduleRetry(task, chunkIndex);
         }, downloadExecutor);
     }
-    
+
+    /**
+     * Puts a chunk that every peer failed to deliver in the retry queue, with an exponential
+     * backoff and jitter so retries from many chunks don't hit the swarm at once.
+     * @throws RuntimeException if the download's retry budget is used up.
+     */
+    private void scheduleRetry(DownloadTask task, int chunkIndex) {
+        if (task.retriesLeft.getAndUpdate(left -> Math.max(0, left - 1)) == 0) {
+            task.picker.markFailed(chunkIndex);
+            throw new RuntimeException("Could not download chunk " + chunkIndex + " from any peer; retry budget exhausted.");
+        }
+        int failures = task.chunkFailures.merge(chunkIndex, 1, Integer::sum);
+        long backoff = Math.min(Constants.RETRY_MAX_DELAY_MS, Constants.RETRY_BASE_DELAY_MS << Math.min(failures - 1, 20));
+        // Equal jitter: at least half the backoff, so a retry never comes back immediately.
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        logger.info("Retrying chunk {} of {} in {} ms (failure {})", chunkIndex, task.riftFile.filename(), delay, failures);
+        task.retries.add(new ChunkRetry(chunkIndex, System.nanoTime() + delay * 1_000_000));
+    }
+
+    /**
+     * Hands every chunk whose backoff has passed back to the picker.
+     */
+    private void releaseDueRetries(DownloadTask task) {
+        ChunkRetry retry;
+        while ((retry = task.retries.poll()) != null) {
+            task.picker.markFailed(retry.chunkIndex());
+        }
+    }
+
+    /**
+     * Waits for the first failed chunk's backoff to pass, looking for new peers in the meantime.
+     */
+    private void awaitRetry(DownloadTask task) throws InterruptedException {
+        task.meter.setStatus("Retrying...");
+        task.swarm.refresh();
+        while (!task.isHalted()) {
+            ChunkRetry retry = task.retries.poll(Constants.ENDGAME_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (retry != null) {
+                task.picker.markFailed(retry.chunkIndex());
+                releaseDueRetries(task);
+                break;
+            }
+        }
+        if (!task.isHalted()) {
+            task.meter.setStatus("Downloading...");
+        }
+    }
+
+    /**
+     * Creates the swarm tracker of a download. Peers that join are asked for their bitfields and
+     * handed to the picker; peers that leave are no longer offered for any chunk.
+     */
+    private SwarmTracker trackSwarm(DownloadTask task) {
+        return new SwarmTracker(task.infohash, p2pService, downloadExecutor, new SwarmTracker.Listener() {
+            @Override
+            public void peersJoined(List<PeerAddress> peers) {
+                addPeers(task, peers);
+            }
+
+            @Override
+            public void peerLeft(PeerAddress peer) {
+                logger.debug("Peer {} left the swarm of {}", peer, task.riftFile.filename());
+                task.haveSequences.remove(peer);
+                task.picker.removePeer(peer);
+            }
+        });
+    }
+
+    /**
+     * Reserves request slots with other peers holding a chunk, for fetching it in blocks.
+     * Only peers whose windows have room right now are used, so helping never delays other chunks.
+     * @return The peers whose slots were reserved; empty if the chunk is too small to split.
+     */
+    private List<PeerAddress> acquireHelpers(DownloadTask task, int chunkIndex, PeerAddress firstPeer) {
+        if (task.riftFile.getChunkLength(chunkIndex) <= Constants.BLOCK_SIZE_BYTES || task.isHalted()) {
+            return List.of();
+        }
+        return task.picker.peersFor(chunkIndex).stream()
+            .filter(peer -> !peer.equals(firstPeer))
+            .filter(peerWindows::tryAcquire)
+            .limit(Constants.MAX_PEERS_PER_CHUNK - 1)
+            .toList();
+    }
+
+    /**
+     * Fetches a chunk from several peers at once. The chunk is split into blocks that the peers
+     * take from a shared queue, each keeping a few block requests pipelined on its connection,
+     * so faster peers end up serving more of the chunk. The chunk is verified from disk once
+     * every block has arrived, and only then do the peers get credit for their blocks. The caller
+     * must hold a request slot with every peer; all of them are released here.
+     * <p>
+     * If the assembled chunk fails verification, each block's source and hash are kept. The chunk
+     * is then refetched from single peers, and once a good copy is in place the peers whose blocks
+     * differ from it are penalized for corrupt data.
+     * @return true if the chunk is complete. On false, the caller retries it from single peers.
+     */
+    private boolean fetchChunkInBlocks(DownloadTask task, int chunkIndex, PeerAddress firstPeer, List<PeerAddress> helpers) {
+        int chunkLength = task.riftFile.getChunkLength(chunkIndex);
+        int blockCount = (chunkLength + Constants.BLOCK_SIZE_BYTES - 1) / Constants.BLOCK_SIZE_BYTES;
+        Queue<Integer> blocks = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < blockCount; i++) {
+            blocks.add(i);
+        }
+        AtomicInteger received = new AtomicInteger();
+        PeerAddress[] sources = new PeerAddress[blockCount];
+
+        List<CompletableFuture<BlockWork>> workers = new ArrayList<>();
+        for (PeerAddress helper : helpers) {
+            workers.add(CompletableFuture.supplyAsync(() -> fetchBlocks(task, chunkIndex, helper, blocks, received, sources), downloadExecutor));
+        }
+        List<BlockWork> work = new ArrayList<>();
+        work.add(fetchBlocks(task, chunkIndex, firstPeer, blocks, received, sources));
+        workers.forEach(worker -> work.add(worker.join()));
+
+        boolean verified = false;
+        try {
+            if (task.output.isClaimed(chunkIndex)) {
+                return true;
+            }
+            if (received.get() < blockCount) {
+                return false;
+            }
+            try {
+                verified = pipeline.verify(() -> fileManager.verifyChunk(task.output.channel(), task.riftFile, chunkIndex));
+                if (!verified) {
+                    logger.warn("Chunk {} assembled from {} peers failed verification; refetching it from single peers",
+                        chunkIndex, work.size());
+                    suspectBlocks(task, chunkIndex, sources);
+                    return false;
+                }
+            } catch (IOException e) {
+                logger.warn("Could not verify chunk {}: {}", chunkIndex, e.getMessage());
+                return false;
+            }
+            if (task.output.claim(chunkIndex)) {
+                completeChunk(task, chunkIndex);
+                task.transfers.abortOthers(chunkIndex, null);
+            }
+            return true;
+        } finally {
+            for (BlockWork peerWork : work) {
+                if (peerWork.failed()) {
+                    peerWindows.release(peerWork.peer(), -1);
+                } else if (verified && peerWork.delivered() > 0) {
+                    scoreboard.recordSuccess(peerWork.peer(), peerWork.delivered(), peerWork.latencyNanos(), peerWork.durationNanos());
+                    peerWindows.release(peerWork.peer(), peerWork.delivered());
+                } else {
+                    // Unverified blocks earn no credit: they may be the reason the chunk failed.
+                    peerWindows.release(peerWork.peer());
+                }
+            }
+        }
+    }
+
+    /**
+     * Records who sent each block of a chunk that failed verification. A single source is blamed
+     * at once; blocks from several sources are compared with the next good copy of the chunk.
+     */
+    private void suspectBlocks(DownloadTask task, int chunkIndex, PeerAddress[] sources) {
+        Set<PeerAddress> distinct = new HashSet<>(Arrays.asList(sources));
+        if (distinct.size() == 1) {
+            scoreboard.recordHashMismatch(sources[0]);
+            return;
+        }
+        try {
+            List<String> hashes = pipeline.verify(() ->
+                fileManager.hashBlocks(task.output.channel(), task.riftFile, chunkIndex, Constants.BLOCK_SIZE_BYTES));
+            task.suspectBlocks.put(chunkIndex, new SuspectBlocks(sources.clone(), hashes));
+        } catch (IOException e) {
+            logger.warn("Could not hash the blocks of chunk {}: {}", chunkIndex, e.getMessage());
+        }
+    }
+
+    /**
+     * Compares the blocks of a chunk that once failed verification with the verified copy now on
+     * disk, and penalizes each peer that sent a block that differs.
+     */
+    private void blameBadBlocks(DownloadTask task, int chunkIndex, SuspectBlocks suspects) {
+        try {
+            List<String> good = pipeline.verify(() ->
+                fileManager.hashBlocks(task.output.channel(), task.riftFile, chunkIndex, Constants.BLOCK_SIZE_BYTES));
+            Set<PeerAddress> culprits = new HashSet<>();
+            for (int block = 0; block < good.size(); block++) {
+                if (!Objects.equals(good.get(block), suspects.hashes().get(block))) {
+                    culprits.add(suspects.sources()[block]);
+                }
+            }
+            culprits.forEach(peer -> {
+                logger.warn("Peer {} sent corrupt blocks of chunk {}", peer, chunkIndex);
+                scoreboard.recordHashMismatch(peer);
+            });
+        } catch (IOException e) {
+            logger.warn("Could not compare the blocks of chunk {}: {}", chunkIndex, e.getMessage());
+        }
+    }
+
+    /**
+     * Fetches blocks of a chunk from one peer until the shared block queue is empty.
+     * Blocks this peer fails to deliver are put back for the other peers. The caller holds the
+     * peer's request slot and releases it once it knows whether the blocks were good.
+     * @param sources Filled in with this peer for every block it delivers.
+     * @return What the peer delivered.
+     */
+    private BlockWork fetchBlocks(DownloadTask task, int chunkIndex, PeerAddress peer, Queue<Integer> blocks,
+                                  AtomicInteger received, PeerAddress[] sources) {
+        int chunkLength = task.riftFile.getChunkLength(chunkIndex);
+        Deque<Integer> inFlight = new ArrayDeque<>();
+        PeerConnection connection = null;
+        long delivered = 0;
+        boolean failed = false;
+        long start = System.nanoTime();
+        long firstByte = 0;
+        task.picker.requestStarted(peer);
+        try {
+            connection = connectionPool.acquire(peer, scoreboard.connectTimeoutMillis(peer));
+            task.transfers.register(chunkIndex, peer, connection);
+            if (task.isHalted()) {
+                throw new IOException("Download halted");
+            }
+            BandwidthManager.Throttle throttle = throttleFor(task, peer);
+            while (true) {
+                Integer block;
+                while (inFlight.size() < Constants.BLOCK_PIPELINE_DEPTH && (block = blocks.poll()) != null) {
+                    inFlight.add(block);
+                    int offset = block * Constants.BLOCK_SIZE_BYTES;
+                    connection.requestBlock(task.infohash, chunkIndex, offset, Math.min(Constants.BLOCK_SIZE_BYTES, chunkLength - offset));
+                }
+                Integer next = inFlight.peek();
+                if (next == null) break;
+
+                int offset = next * Constants.BLOCK_SIZE_BYTES;
+                int length = Math.min(Constants.BLOCK_SIZE_BYTES, chunkLength - offset);
+                ChunkSink sink = task.output.blockSink(chunkIndex, offset);
+                connection.setDeadline(scoreboard.transferDeadlineMillis(peer, length));
+                connection.receiveBlock(chunkIndex, length, throttle, (data, dataOffset, count) -> {
+                    task.meter.addTransferred(count);
+                    sink.accept(data, dataOffset, count);
+                });
+                if (firstByte == 0) firstByte = System.nanoTime();
+                inFlight.poll();
+                sources[next] = peer;
+                delivered += length;
+                received.incrementAndGet();
+            }
+            task.transfers.unregister(chunkIndex, connection);
+            connectionPool.release(connection);
+            connection = null;
+        } catch (ChunkUnavailableException e) {
+            task.picker.peerLacksChunk(peer, chunkIndex);
+            logger.debug("Peer {} does not hold chunk {}", peer, chunkIndex);
+        } catch (Exception e) {
+            if (!task.output.isClaimed(chunkIndex) && !task.isHalted()) {
+                failed = true;
+                scoreboard.recordFailure(peer);
+                logger.warn("Failed to download blocks of chunk {} from peer {}. Reason: {}", chunkIndex, peer, e.getMessage());
+            }
+        } finally {
+            blocks.addAll(inFlight);
+            if (connection != null) {
+                task.transfers.unregister(chunkIndex, connection);
+                // Still in sync only if every pipelined request was answered.
+                connectionPool.release(connection);
+            }
+            task.picker.requestFinished(peer);
+        }
+        return new BlockWork(peer, delivered, firstByte - start, System.nanoTime() - start, failed);
+    }
+
+    private boolean verifyExistingChunk(DownloadTask task, int chunkIndex) {
+        try {
+            if (pipeline.verify(() -> fileManager.verifyChunk(task.output.channel(), task.riftFile, chunkIndex))
+                && task.output.claim(chunkIndex)) {
+                completeChunk(task, chunkIndex);
+                return true;
+            }
+        } catch (IOException e) {
+            logger.warn("Could not check existing data for chunk {}: {}", chunkIndex, e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Streams a chunk from one peer into place, like {@link #fetchChunk}. If the request is still
+     * running once it has taken longer than {@link Constants#HEDGE_PERCENTILE} of recent requests,
+     * a hedged duplicate is sent to another peer; whichever copy verifies first wins and the other
+     * transfer is aborted. This cuts off the latency tail caused by slow or stalling peers.
+     */
+    private boolean fetchHedged(DownloadTask task, int chunkIndex, PeerAddress peer) {
+        long hedgeAfter = requestLatency.percentile(Constants.HEDGE_PERCENTILE);
+        if (hedgeAfter < 0) {
+            return fetchChunk(task, chunkIndex, peer);
+        }
+        ScheduledFuture<?> hedge = scheduler.schedule(() -> {
+            if (!task.output.isClaimed(chunkIndex) && !task.isHalted()) {
+                logger.debug("Chunk {} from {} passed {} ms; sending a hedged request", chunkIndex, peer, hedgeAfter);
+                requestDuplicates(task, chunkIndex, 1);
+            }
+        }, hedgeAfter, TimeUnit.MILLISECONDS);
+        try {
+            return fetchChunk(task, chunkIndex, peer);
+        } finally {
+            hedge.cancel(false);
+        }
+    }
+
+    /**
+     * Streams a chunk from one peer into place. The caller must hold a request slot with
+     * the peer; it is released here, together with the outcome for the peer's window.
+     * @return true if the chunk is complete, whether through this request or another one.
+     */
+    private boolean fetchChunk(DownloadTask task, int chunkIndex, PeerAddress peer) {
+        RiftFile riftFile = task.riftFile;
+        DownloadOutput output = task.output;
+        // An endgame duplicate may have completed the chunk already.
+        if (output.isClaimed(chunkIndex)) {
+            peerWindows.release(peer);
+            return true;
+        }
+
+        PeerConnection connection = null;
+        long delivered = -1;
+        boolean corrupt = false;
+        boolean neutral = false;
+        long start = System.nanoTime();
+        long[] firstByte = {0};
+        // The chunk is hashed and written by the pipeline as it streams in; a bad copy is simply
+        // overwritten by the next attempt, once this one's writes have drained.
+        ChunkPipeline.Job job = pipeline.begin(output, chunkIndex);
+        task.picker.requestStarted(peer);
+        try {
+            connection = connectionPool.acquire(peer, scoreboard.connectTimeoutMillis(peer));
+            task.transfers.register(chunkIndex, peer, connection);
+            if (task.isHalted()) {
+                // Paused or cancelled before the registration could be aborted.
+                throw new IOException("Download halted");
+            }
+            connection.setDeadline(scoreboard.transferDeadlineMillis(peer, riftFile.getChunkLength(chunkIndex)));
+            connection.transferChunk(task.infohash, chunkIndex, riftFile.getChunkLength(chunkIndex), throttleFor(task, peer), (data, offset, length) -> {
+                if (firstByte[0] == 0) firstByte[0] = System.nanoTime();
+                task.meter.addTransferred(length);
+                job.accept(data, offset, length);
+            });
+            delivered = riftFile.getChunkLength(chunkIndex);
+            task.transfers.unregister(chunkIndex, connection);
+            connectionPool.release(connection);
+            PeerConnection winner = connection;
+            connection = null;
+
+            String expectedHash = riftFile.chunkHashes().get(chunkIndex);
+            String actualHash = job.finish();
+
+            if (!expectedHash.equals(actualHash)) {
+                scoreboard.recordHashMismatch(peer);
+                // Corrupt data must shrink the peer's window, not count as a delivered round.
+                delivered = -1;
+                corrupt = true;
+                throw new IOException("Chunk hash mismatch for index " + chunkIndex);
+            }
+
+            scoreboard.recordSuccess(peer, delivered, firstByte[0] - start, System.nanoTime() - start);
+            requestLatency.record((System.nanoTime() - start) / 1_000_000);
+            if (output.claim(chunkIndex)) {
+                completeChunk(task, chunkIndex);
+                task.transfers.abortOthers(chunkIndex, winner);
+            }
+            return true;
+        } catch (ChunkUnavailableException e) {
+            // The connection is still in sync, so it goes back to the pool.
+            task.transfers.unregister(chunkIndex, connection);
+            connectionPool.release(connection);
+            connection = null;
+            neutral = true;
+            task.picker.peerLacksChunk(peer, chunkIndex);
+            logger.debug("Peer {} does not hold chunk {}", peer, chunkIndex);
+            return false;
+        } catch (Exception e) {
+            if (connection != null) {
+                task.transfers.unregister(chunkIndex, connection);
+                connectionPool.invalidate(connection);
+            }
+            if (output.isClaimed(chunkIndex)) {
+                // Aborted because another copy won; that says nothing about this peer's link.
+                neutral = true;
+                return true;
+            }
+            if (task.isHalted()) {
+                // Aborted by pause or cancel.
+                neutral = true;
+                return false;
+            }
+            if (delivered < 0 && !corrupt) {
+                // Hash mismatches have already been recorded as such.
+                scoreboard.recordFailure(peer);
+            }
+            logger.warn("Failed to download chunk {} from peer {}. Reason: {}", chunkIndex, peer, e.getMessage());
+            return false;
+        } finally {
+            // No write from this attempt may land after the chunk is handed to another one.
+            job.abort();
+            task.picker.requestFinished(peer);
+            if (neutral) {
+                peerWindows.release(peer);
+            } else {
+                peerWindows.release(peer, delivered);
+            }
+        }
+    }
+
+    /**
+     * Fetches an endgame copy of a chunk into pooled buffers. Buffering keeps redundant copies
+     * from racing each other on disk; the first copy to verify is written and claimed.
+     * The caller must hold a request slot with the peer, which is released here.
+     */
+    private void fetchDuplicate(DownloadTask task, int chunkIndex, PeerAddress peer) {
+        if (task.output.isClaimed(chunkIndex) || task.isHalted()) {
+            peerWindows.release(peer);
+            return;
+        }
+
+        int length = task.riftFile.getChunkLength(chunkIndex);
+        List<BufferPool.Lease> segments = new ArrayList<>();
+
+        PeerConnection connection = null;
+        long start = System.nanoTime();
+        long[] firstByte = {0};
+        task.picker.requestStarted(peer);
+        try {
+            connection = connectionPool.acquire(peer, scoreboard.connectTimeoutMillis(peer));
+            task.transfers.register(chunkIndex, peer, connection);
+            connection.setDeadline(scoreboard.transferDeadlineMillis(peer, length));
+            connection.transferChunk(task.infohash, chunkIndex, length, throttleFor(task, peer), (data, offset, count) -> {
+                if (task.output.isClaimed(chunkIndex)) {
+                    throw new IOException("Chunk " + chunkIndex + " was already completed by another request");
+                }
+                if (firstByte[0] == 0) firstByte[0] = System.nanoTime();
+                task.meter.addTransferred(count);
+                bufferSegment(segments, data, offset, count);
+            });
+            task.transfers.unregister(chunkIndex, connection);
+            connectionPool.release(connection);
+            PeerConnection winner = connection;
+            connection = null;
+
+            List<ByteBuffer> chunkData = segments.stream().map(segment -> segment.buffer().flip()).toList();
+            if (!task.riftFile.chunkHashes().get(chunkIndex).equals(pipeline.verify(() -> hash(chunkData)))) {
+                scoreboard.recordHashMismatch(peer);
+                logger.warn("Endgame copy of chunk {} from peer {} failed verification", chunkIndex, peer);
+                return;
+            }
+            scoreboard.recordSuccess(peer, length, firstByte[0] - start, System.nanoTime() - start);
+            if (task.output.writeAndClaim(chunkIndex, chunkData)) {
+                logger.debug("Endgame copy of chunk {} from peer {} won", chunkIndex, peer);
+                completeChunk(task, chunkIndex);
+                task.transfers.abortOthers(chunkIndex, winner);
+            }
+        } catch (Exception e) {
+            if (connection != null) {
+                task.transfers.unregister(chunkIndex, connection);
+                connectionPool.invalidate(connection);
+            }
+            logger.debug("Endgame request for chunk {} to peer {} ended: {}", chunkIndex, peer, e.getMessage());
+        } finally {
+            segments.forEach(BufferPool.Lease::close);
+            task.picker.requestFinished(peer);
+            // Endgame requests are expected to lose races, so they don't feed the window.
+            peerWindows.release(peer);
+        }
+    }
+
+    /**
+     * Appends received data to a chunk held in pooled buffers, taking a new buffer whenever the last one is full.
+     */
+    private static void bufferSegment(List<BufferPool.Lease> segments, byte[] data, int offset, int length) {
+        while (length > 0) {
+            BufferPool.Lease last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last == null || !last.buffer().hasRemaining()) {
+                last = BufferPool.acquire();
+                segments.add(last);
+            }
+            int count = Math.min(length, last.buffer().remaining());
+            last.buffer().put(data, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private static String hash(List<ByteBuffer> segments) {
+        MessageDigest digest = Hashing.newSha256Digest();
+        // Hash duplicates so the buffers stay positioned for the write.
+        segments.forEach(segment -> digest.update(segment.duplicate()));
+        return Hashing.finish(digest);
+    }
+
+    /**
+     * Fills every missing chunk that a local file already holds a verified copy of, without
+     * touching the network. Copies are written the same way as endgame duplicates, so a chunk
+     * is never overwritten once claimed.
+     */
+    private void copyLocalChunks(DownloadTask task) {
+        List<String> hashes = task.riftFile.chunkHashes();
+        int copied = 0;
+        for (int chunkIndex : task.picker.missingChunks()) {
+            if (task.cancelled.get()) return;
+            try {
+                // Nothing else writes the download yet, so the copy verified while streaming is what lands on disk.
+                if (!chunkStore.copy(hashes.get(chunkIndex), () -> task.output.blockSink(chunkIndex, 0))) continue;
+                if (task.output.claim(chunkIndex)) {
+                    completeChunk(task, chunkIndex);
+                    copied++;
+                }
+            } catch (IOException e) {
+                logger.warn("Could not copy local chunk {} into {}: {}", chunkIndex, task.riftFile.filename(), e.getMessage());
+            }
+        }
+        if (copied > 0) {
+            logger.info("Reused {} chunks of {} already on disk", copied, task.riftFile.filename());
+        }
+    }
+
+    /**
+     * Announces a download in the DHT the first time it holds a verified chunk, so other
+     * downloaders can fetch that chunk from us while we fetch the rest.
+     */
+    private void announcePartial(DownloadTask task) {
+        if (!task.announced.compareAndSet(false, true)) {
+            return;
+        }
+        p2pService.announceFile(task.infohash).exceptionally(e -> {
+            logger.warn("Could not announce partial download {}: {}", task.infohash, e.getMessage());
+            task.announced.set(false);
+            return null;
+        });
+    }
+
+    /**
+     * Shares a completed download from where it landed and announces it. The download's chunks
+     * were all verified against its metadata, so the file is neither copied nor hashed again.
+     * Peers never see the chunks we advertised disappear: the download keeps serving them from
+     * the final path until the shared copy is registered, and for good if sharing fails.
+     */
+    private void seedInPlace(DownloadTask task, Path finalPath) {
+        String downloadKey = ChunkStore.downloadKey(task.infohash);
+        chunkStore.register(downloadKey, finalPath, task.riftFile, null);
+        try {
+            fileManager.shareInPlace(task.riftFile, finalPath);
+        } catch (IOException e) {
+            logger.error("Could not share completed download {}", task.riftFile.filename(), e);
+            return;
+        }
+        chunkStore.unregister(downloadKey);
+        p2pService.announceFile(task.infohash).exceptionally(e -> {
+            logger.warn("Could not announce completed download {}: {}", task.infohash, e.getMessage());
+            return null;
+        });
+    }
+
+    /**
+     * Stops serving a cancelled download, and withdraws its announcement unless the file is also shared.
+     */
+    private void withdrawPartial(DownloadTask task) {
+        chunkStore.unregister(ChunkStore.downloadKey(task.infohash));
+        if (task.announced.get() && !fileManager.isShared(task.infohash)) {
+            p2pService.stopAnnouncing(task.infohash).exceptionally(e -> {
+                logger.warn("Could not withdraw announcement of {}: {}", task.infohash, e.getMessage());
+                return null;
+            });
+        }
+    }
+
+    private BandwidthManager.Throttle throttleFor(DownloadTask task, PeerAddress peer) {
+        return bandwidthManager.throttle(BandwidthManager.Direction.DOWNLOAD, task.infohash, peer.inetAddress().getHostAddress());
+    }
+
+    private void completeChunk(DownloadTask task, int chunkIndex) {
+        SuspectBlocks suspects = task.suspectBlocks.remove(chunkIndex);
+        if (suspects != null) {
+            blameBadBlocks(task, chunkIndex, suspects);
+        }
+        task.journal.markVerified(chunkIndex);
+        task.picker.markCompleted(chunkIndex);
+        task.retriesLeft.updateAndGet(left -> Math.min(task.retryBudget, left + 1));
+        task.availability.markAvailable(chunkIndex);
+        chunkStore.addChunk(ChunkStore.downloadKey(task.infohash), chunkIndex);
+        task.meter.addCompleted(task.riftFile.getChunkLength(chunkIndex));
+        announcePartial(task);
+        try {
+            task.journal.checkpoint(task.output.channel(), false);
+        } catch (IOException e) {
+            // The chunk stays recorded in memory and is persisted by a later checkpoint.
+            logger.warn("Failed to checkpoint download journal for {}: {}", task.infohash, e.getMessage());
+        }
+    }
+
+    private void checkpointQuietly(DownloadTask task) {
+        try {
+            task.journal.checkpoint(task.output.channel(), true);
+        } catch (IOException e) {
+            logger.error("Failed to checkpoint download journal for {}", task.infohash, e);
+        }
+    }
+
     public void shutdown() {
         downloadExecutor.shutdownNow();
+        connectionPool.closeAll();
+        progressSampler.shutdown();
+        scheduler.shutdownNow();
+        pipeline.shutdown();
     }
 }
\ No newline at end of file
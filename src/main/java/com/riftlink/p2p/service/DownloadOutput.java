@@ -0,0 +1,129 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.model.RiftFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The output file of a download, with per-chunk ownership of the bytes on disk.
+ * <p>
+ * More than one request may be fetching the same chunk at once (for example in endgame).
+ * The first copy to verify <em>claims</em> the chunk; from then on no other request may
+ * write to its region, so a late or corrupt copy can never overwrite verified data.
+ */
+public class DownloadOutput implements Closeable {
+    private static final int LOCK_STRIPES = 64;
+
+    private final FileChannel channel;
+    private final RiftFile riftFile;
+    private final AtomicLongArray claimed;
+    // Locks rather than monitors: writes block on disk, and a virtual thread must not pin its carrier meanwhile.
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    public DownloadOutput(FileChannel channel, RiftFile riftFile) {
+        this.channel = channel;
+        this.riftFile = riftFile;
+        this.claimed = new AtomicLongArray((riftFile.getNumberOfChunks() + 63) / 64);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Creates a sink that writes a block of a chunk into place as it streams in, without hashing it.
+     * The chunk is verified from disk once all of its blocks have arrived. The sink fails as soon as
+     * another copy of the chunk has been claimed.
+     * @param chunkIndex The chunk the block belongs to.
+     * @param blockOffset The offset of the block within the chunk.
+     * @return A sink positioned at the start of the block.
+     */
+    public ChunkSink blockSink(int chunkIndex, int blockOffset) {
+        long[] position = { riftFile.getChunkOffset(chunkIndex) + blockOffset };
+        return (data, offset, length) -> {
+            ReentrantLock lock = lockFor(chunkIndex);
+            lock.lock();
+            try {
+                if (isClaimed(chunkIndex)) {
+                    throw new IOException("Chunk " + chunkIndex + " was already completed by another request");
+                }
+                position[0] += writeFully(ByteBuffer.wrap(data, offset, length), position[0]);
+            } finally {
+                lock.unlock();
+            }
+        };
+    }
+
+    /**
+     * Claims a chunk whose data has been streamed into place and verified.
+     * @return true if this caller now owns the chunk, false if another copy got there first.
+     */
+    public boolean claim(int chunkIndex) {
+        ReentrantLock lock = lockFor(chunkIndex);
+        lock.lock();
+        try {
+            return setClaimed(chunkIndex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a verified, fully buffered copy of a chunk and claims it in one step.
+     * @param segments The chunk's data, in order, each buffer ready to be read.
+     * @return true if the copy was written, false if another copy had already been claimed.
+     * @throws IOException if the data cannot be written.
+     */
+    public boolean writeAndClaim(int chunkIndex, List<ByteBuffer> segments) throws IOException {
+        ReentrantLock lock = lockFor(chunkIndex);
+        lock.lock();
+        try {
+            if (isClaimed(chunkIndex)) {
+                return false;
+            }
+            long position = riftFile.getChunkOffset(chunkIndex);
+            for (ByteBuffer segment : segments) {
+                position += writeFully(segment, position);
+            }
+            return setClaimed(chunkIndex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClaimed(int chunkIndex) {
+        return (claimed.get(chunkIndex >>> 6) & (1L << chunkIndex)) != 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private boolean setClaimed(int chunkIndex) {
+        long bit = 1L << chunkIndex;
+        long previous = claimed.getAndUpdate(chunkIndex >>> 6, word -> word | bit);
+        return (previous & bit) == 0;
+    }
+
+    private int writeFully(ByteBuffer data, long position) throws IOException {
+        int written = 0;
+        while (data.hasRemaining()) {
+            written += channel.write(data, position + written);
+        }
+        return written;
+    }
+
+    private ReentrantLock lockFor(int chunkIndex) {
+        return locks[chunkIndex % LOCK_STRIPES];
+    }
+}
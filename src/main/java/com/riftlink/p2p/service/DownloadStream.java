@@ -0,0 +1,166 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.model.RiftFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * A read-only channel over a file that is still downloading.
+ * <p>
+ * A read blocks only until the chunk under the current position has been verified, and never
+ * returns bytes beyond the end of that chunk. Every read and seek reports the chunk it needs to
+ * a playhead listener, so the download can fetch the file in order from where it is being read.
+ * The underlying file is opened on the first read, from its partial path while the download
+ * runs or from its final path once it has completed.
+ */
+public class DownloadStream implements SeekableByteChannel {
+    private final RiftFile riftFile;
+    private final ChunkAvailability availability;
+    private final Path partialPath;
+    private final Path finalPath;
+    private final IntConsumer playheadListener;
+    // A Lock rather than a monitor, since reads block waiting for chunks.
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile FileChannel channel;
+    private volatile boolean open = true;
+    private long position = 0;
+
+    /**
+     * @param riftFile The metadata of the file being read.
+     * @param availability Reports which chunks have been verified.
+     * @param partialPath Where the file lives while it downloads.
+     * @param finalPath Where the file lives once complete.
+     * @param playheadListener Receives the index of the chunk the reader needs next.
+     */
+    public DownloadStream(RiftFile riftFile, ChunkAvailability availability, Path partialPath, Path finalPath,
+                          IntConsumer playheadListener) {
+        this.riftFile = riftFile;
+        this.availability = availability;
+        this.partialPath = partialPath;
+        this.finalPath = finalPath;
+        this.playheadListener = playheadListener;
+        playheadListener.accept(0);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            if (position >= riftFile.totalSize()) {
+                return -1;
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            int chunkIndex = (int) (position / riftFile.chunkSize());
+            playheadListener.accept(chunkIndex);
+            availability.awaitChunk(chunkIndex);
+            ensureOpen();
+
+            long chunkEnd = riftFile.getChunkOffset(chunkIndex) + riftFile.getChunkLength(chunkIndex);
+            int length = (int) Math.min(dst.remaining(), chunkEnd - position);
+            ByteBuffer slice = dst.slice().limit(length);
+            int read = fileChannel().read(slice, position);
+            if (read > 0) {
+                dst.position(dst.position() + read);
+                position += read;
+            }
+            return read;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position: " + newPosition);
+            }
+            position = newPosition;
+            if (position < riftFile.totalSize()) {
+                playheadListener.accept((int) (position / riftFile.chunkSize()));
+            }
+            return this;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        return riftFile.totalSize();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the channel. A read blocked waiting for a chunk fails once the chunk arrives
+     * or the download stops.
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        FileChannel current = channel;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private FileChannel fileChannel() throws IOException {
+        if (channel == null) {
+            // The download renames the file when it completes; an open channel survives that, a lookup doesn't.
+            Path path = Files.exists(partialPath) ? partialPath : finalPath;
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                channel = FileChannel.open(finalPath, StandardOpenOption.READ);
+            }
+        }
+        return channel;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
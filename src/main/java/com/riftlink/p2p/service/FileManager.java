@@ -2,18 +2,23 @@ package com.riftlink.p2p.service;
 
 import com.google.gson.Gson;
 import com.riftlink.p2p.model.RiftFile;
+import com.riftlink.p2p.util.BufferPool;
 import com.riftlink.p2p.util.Constants;
 import com.riftlink.p2p.util.Hashing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
@@ -21,14 +26,15 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
- * Manages all file system interactions: creating .rift files, reading/writing chunks,
- * and reassembling completed files.
+ * Manages all file system interactions: creating .rift files, reading chunks,
+ * and preparing and completing download output files.
  */
-public class FileManager {
+public final class FileManager {
 
     private static final Logger logger = LoggerFactory.getLogger(FileManager.class);
     private final Path sharedDirectory;
     private final Path downloadsDirectory;
+    private final ChunkStore chunkStore = new ChunkStore();
 
     /**
      * Constructor for FileManager.
@@ -46,6 +52,22 @@ public class FileManager {
             logger.error("Could not create necessary directories", e);
             throw new RuntimeException("Failed to initialize directories", e);
         }
+        indexSharedFiles();
+    }
+
+    /**
+     * Registers the chunks of every shared file with the chunk store.
+     */
+    private void indexSharedFiles() {
+        try (Stream<Path> paths = Files.walk(sharedDirectory)) {
+            paths.filter(path -> path.toString().endsWith(Constants.METADATA_EXTENSION))
+                .map(this::loadRiftFileFromPath)
+                .flatMap(Optional::stream)
+                .forEach(riftFile -> chunkStore.register(Hashing.createInfoHash(riftFile),
+                    getSharedFilePath(riftFile), riftFile, null));
+        } catch (IOException e) {
+            logger.error("Could not index shared files", e);
+        }
     }
 
     /**
@@ -59,24 +81,14 @@ public class FileManager {
         logger.info("Creating .rift file for: {}", fileToShare.getName());
         List<String> chunkHashes = new ArrayList<>();
 
-        try (RandomAccessFile raf = new RandomAccessFile(fileToShare, "r")) {
-            byte[] buffer = new byte[Constants.CHUNK_SIZE_BYTES];
-            long bytesRemaining = raf.length();
-            
-            while (bytesRemaining > 0) {
-                int bytesToRead = (int) Math.min(buffer.length, bytesRemaining);
-                raf.readFully(buffer, 0, bytesToRead);
-                
-                byte[] chunkData;
-                if (bytesToRead < buffer.length) {
-                    chunkData = new byte[bytesToRead];
-                    System.arraycopy(buffer, 0, chunkData, 0, bytesToRead);
-                } else {
-                    chunkData = buffer;
+        try (FileChannel channel = FileChannel.open(fileToShare.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += Constants.CHUNK_SIZE_BYTES) {
+                String hash = hashRange(channel, position, Math.min(Constants.CHUNK_SIZE_BYTES, size - position));
+                if (hash == null) {
+                    throw new EOFException("File shrank while it was being hashed: " + fileToShare);
                 }
-                
-                chunkHashes.add(Hashing.sha256(chunkData));
-                bytesRemaining -= bytesToRead;
+                chunkHashes.add(hash);
             }
         }
 
@@ -89,62 +101,175 @@ public class FileManager {
 
         // Save the .rift file to disk
         saveRiftFile(riftFile);
+        chunkStore.register(Hashing.createInfoHash(riftFile), fileToShare.toPath(), riftFile, null);
 
         logger.info("Successfully created .rift file for {}", riftFile.filename());
         return riftFile;
     }
 
     /**
-     * Reads a specific chunk from a shared file.
-     * @param riftFile The metadata of the file.
-     * @param chunkIndex The index of the chunk to read.
-     * @return The byte array of the chunk data.
-     * @throws IOException if there is an error reading the chunk.
+     * Shares a file from where it already is, with metadata whose hashes are already known and
+     * verified, such as a completed download. Nothing is copied or hashed again.
+     * @param riftFile The verified metadata of the file.
+     * @param location Where the file is on disk.
+     * @return The infohash of the file.
+     * @throws IOException if the metadata cannot be saved.
      */
-    public byte[] getChunk(RiftFile riftFile, int chunkIndex) throws IOException {
-        Path filePath = sharedDirectory.resolve(riftFile.filename());
-        if (!Files.exists(filePath)) {
-            throw new IOException("Original file not found in shared directory: " + riftFile.filename());
+    public String shareInPlace(RiftFile riftFile, Path location) throws IOException {
+        String infohash = Hashing.createInfoHash(riftFile);
+        Path absolute = location.toAbsolutePath();
+        if (!absolute.equals(sharedDirectory.resolve(riftFile.filename()).toAbsolutePath())) {
+            Files.writeString(sharedDirectory.resolve(infohash + Constants.LOCATION_EXTENSION), absolute.toString(), StandardCharsets.UTF_8);
         }
+        saveRiftFile(riftFile);
+        chunkStore.register(infohash, absolute, riftFile, null);
+        logger.info("Sharing {} in place from {}", riftFile.filename(), absolute);
+        return infohash;
+    }
 
-        try (RandomAccessFile raf = new RandomAccessFile(filePath.toFile(), "r")) {
-            long startPosition = (long) chunkIndex * Constants.CHUNK_SIZE_BYTES;
-            raf.seek(startPosition);
+    /**
+     * @param riftFile The metadata of a shared file.
+     * @return Where the file's data is: in the shared directory, or wherever it was shared in place from.
+     */
+    public Path getSharedFilePath(RiftFile riftFile) {
+        Path locationFile = sharedDirectory.resolve(Hashing.createInfoHash(riftFile) + Constants.LOCATION_EXTENSION);
+        try {
+            if (Files.exists(locationFile)) {
+                return Path.of(Files.readString(locationFile, StandardCharsets.UTF_8).trim());
+            }
+        } catch (IOException e) {
+            logger.error("Could not read the location of shared file {}", riftFile.filename(), e);
+        }
+        return sharedDirectory.resolve(riftFile.filename());
+    }
+
+    /**
+     * Opens the output file of a download for positional chunk writes, creating it as a
+     * sparse file of the final size so chunks can land in any order.
+     * While incomplete, the file is named after the download's infohash with the
+     * {@link Constants#PARTIAL_FILE_EXTENSION} suffix, like its journal.
+     * @param riftFile The metadata for the file being downloaded.
+     * @return A channel open for reading and writing.
+     * @throws IOException if the file cannot be created or sized.
+     */
+    public FileChannel openDownloadFile(RiftFile riftFile) throws IOException {
+        Path partialFile = getPartialFilePath(riftFile);
+        FileChannel channel = FileChannel.open(partialFile,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE);
+        try {
+            long size = channel.size();
+            if (size > riftFile.totalSize()) {
+                channel.truncate(riftFile.totalSize());
+            } else if (size < riftFile.totalSize()) {
+                // Writing the last byte extends the file without allocating the gap on sparse-capable filesystems.
+                channel.write(ByteBuffer.wrap(new byte[1]), riftFile.totalSize() - 1);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        logger.info("Opened download file: {}", partialFile);
+        return channel;
+    }
+
+    /**
+     * Moves a fully downloaded file from its partial name to its final name.
+     * The channel returned by {@link #openDownloadFile} must be closed first.
+     * @param riftFile The metadata for the completed file.
+     * @return The path of the completed file.
+     * @throws IOException if the file cannot be moved.
+     */
+    public Path completeDownloadFile(RiftFile riftFile) throws IOException {
+        Path finalFile = getDownloadedFilePath(riftFile);
+        Files.move(getPartialFilePath(riftFile), finalFile, StandardCopyOption.REPLACE_EXISTING);
+        logger.info("Download completed: {}", finalFile);
+        return finalFile;
+    }
 
-            long fileSize = raf.length();
-            int bytesToRead = (int) Math.min(Constants.CHUNK_SIZE_BYTES, fileSize - startPosition);
-            
-            byte[] chunkData = new byte[bytesToRead];
-            raf.readFully(chunkData);
-            return chunkData;
+    /**
+     * Deletes the partial output file of an abandoned download.
+     * @param riftFile The metadata for the abandoned file.
+     */
+    public void discardDownloadFile(RiftFile riftFile) {
+        try {
+            Files.deleteIfExists(getPartialFilePath(riftFile));
+        } catch (IOException e) {
+            logger.error("Failed to delete partial download: {}", riftFile.filename(), e);
         }
     }
 
     /**
-     * Reassembles a file from its downloaded chunks.
-     * @param riftFile The metadata for the file being assembled.
-     * @param infohash The infohash of the file, used to find the chunk directory.
-     * @throws IOException if there is an error during file writing or chunk reading.
+     * Checks whether the data already in a download file matches a chunk's hash.
+     * Used to pick up chunks written before a crash that were never recorded as verified.
+     * @param channel The download's output file.
+     * @param riftFile The metadata for the file.
+     * @param chunkIndex The chunk to check.
+     * @return true if the chunk's data on disk is valid.
+     * @throws IOException if the file cannot be read.
      */
-    public void reassembleFile(RiftFile riftFile, String infohash) throws IOException {
-        Path chunkDir = downloadsDirectory.resolve(infohash);
-        Path finalFile = downloadsDirectory.resolve(riftFile.filename());
-        logger.info("Reassembling file: {}", finalFile);
+    public boolean verifyChunk(FileChannel channel, RiftFile riftFile, int chunkIndex) throws IOException {
+        String hash = hashRange(channel, riftFile.getChunkOffset(chunkIndex), riftFile.getChunkLength(chunkIndex));
+        return riftFile.chunkHashes().get(chunkIndex).equals(hash);
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(finalFile.toFile())) {
-            for (int i = 0; i < riftFile.getNumberOfChunks(); i++) {
-                Path chunkPath = chunkDir.resolve("chunk_" + i);
-                if (!Files.exists(chunkPath)) {
-                    throw new IOException("Missing chunk " + i + " for file " + riftFile.filename());
+    /**
+     * Hashes each block of a chunk in a download file separately, so the blocks of two copies
+     * of the chunk can be compared.
+     * @param channel The download's output file.
+     * @param riftFile The metadata for the file.
+     * @param chunkIndex The chunk to hash.
+     * @param blockSize The size of every block but the last.
+     * @return The hash of each block, in order; null for a block the file ends before.
+     * @throws IOException if the file cannot be read.
+     */
+    public List<String> hashBlocks(FileChannel channel, RiftFile riftFile, int chunkIndex, int blockSize) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        long start = riftFile.getChunkOffset(chunkIndex);
+        int chunkLength = riftFile.getChunkLength(chunkIndex);
+        for (int offset = 0; offset < chunkLength; offset += blockSize) {
+            hashes.add(hashRange(channel, start + offset, Math.min(blockSize, chunkLength - offset)));
+        }
+        return hashes;
+    }
+
+    /**
+     * Hashes a range of a file through a pooled buffer, a slice at a time.
+     * @return The hash, or null if the file ends before the range does.
+     */
+    private static String hashRange(FileChannel channel, long position, long length) throws IOException {
+        MessageDigest digest = Hashing.newSha256Digest();
+        long end = position + length;
+        try (BufferPool.Lease lease = BufferPool.acquire()) {
+            ByteBuffer buffer = lease.buffer();
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    return null;
                 }
-                byte[] chunkData = Files.readAllBytes(chunkPath);
-                fos.write(chunkData);
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
             }
         }
-        logger.info("File reassembled successfully: {}", finalFile);
+        return Hashing.finish(digest);
+    }
 
-        // Optional: Clean up chunk directory after reassembly
-        // ...
+    /**
+     * @param riftFile The metadata for the downloaded file.
+     * @return The path the file occupies once its download has completed.
+     */
+    public Path getDownloadedFilePath(RiftFile riftFile) {
+        return downloadsDirectory.resolve(riftFile.filename());
+    }
+
+    /**
+     * @param riftFile The metadata for the file being downloaded.
+     * @return The path the file occupies while it is still being downloaded. It is keyed by infohash,
+     *         so different files with the same name never share a partial file.
+     */
+    public Path getPartialFilePath(RiftFile riftFile) {
+        return downloadsDirectory.resolve(Hashing.createInfoHash(riftFile) + Constants.PARTIAL_FILE_EXTENSION);
     }
 
     /**
@@ -169,6 +294,7 @@ public class FileManager {
 
     /**
      * Removes a shared file and its corresponding .rift metadata file.
+     * A file shared in place is only unshared; the file itself stays where it is.
      * @param filename The filename of the file to remove.
      */
     public void removeSharedFile(String filename) {
@@ -177,8 +303,12 @@ public class FileManager {
                 String infohash = Hashing.createInfoHash(riftFile);
                 Path originalFilePath = sharedDirectory.resolve(filename);
                 Path riftFilePath = sharedDirectory.resolve(infohash + Constants.METADATA_EXTENSION);
+                Path locationFile = sharedDirectory.resolve(infohash + Constants.LOCATION_EXTENSION);
 
-                Files.deleteIfExists(originalFilePath);
+                chunkStore.unregister(infohash);
+                if (!Files.deleteIfExists(locationFile)) {
+                    Files.deleteIfExists(originalFilePath);
+                }
                 Files.deleteIfExists(riftFilePath);
 
                 logger.info("Successfully removed shared file and its metadata: {}", filename);
@@ -188,6 +318,14 @@ public class FileManager {
         });
     }
 
+    /**
+     * @param infohash The infohash of a file.
+     * @return true if the file is shared from the shared directory.
+     */
+    public boolean isShared(String infohash) {
+        return Files.exists(sharedDirectory.resolve(infohash + Constants.METADATA_EXTENSION));
+    }
+
     /**
      * Gets a list of all shared file names by reading the .rift files.
      * @return A list of filenames.
@@ -234,4 +372,11 @@ public class FileManager {
     public Path getSharedDirectory() {
         return sharedDirectory;
     }
+
+    /**
+     * @return The index of verified chunks on local disk, shared by uploads and downloads.
+     */
+    public ChunkStore getChunkStore() {
+        return chunkStore;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,14 @@
+package com.riftlink.p2p.service;
+
+import java.util.BitSet;
+
+/**
+ * The chunks a peer holds of a file, sent either as its whole bitfield or as the chunks it
+ * has gained since an earlier update (its HAVE messages).
+ *
+ * @param full true if {@code chunks} is the peer's whole bitfield, false if it only lists new chunks.
+ * @param sequence The position in the peer's HAVE log this update brings the requester up to;
+ *                 passing it back asks for the chunks gained after this update.
+ * @param chunks The chunks held or gained.
+ */
+public record HaveUpdate(boolean full, int sequence, BitSet chunks) {}
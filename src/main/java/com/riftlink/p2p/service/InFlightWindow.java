@@ -0,0 +1,101 @@
+package com.riftlink.p2p.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A sliding window over the chunks of one download that are being transferred.
+ * <p>
+ * The dispatcher reserves a slot before it picks each chunk and the transfer frees it when it
+ * ends, so only a bounded number of chunks is ever scheduled ahead, whatever the file's size.
+ * A reserved slot is handed back at once if no peer that can take a request holds a chunk;
+ * the dispatcher never holds a slot while waiting for a particular peer. The first failure of
+ * a transfer is kept for the dispatcher to rethrow.
+ */
+public class InFlightWindow {
+    private final int capacity;
+    // A Lock rather than a monitor, so a virtual thread waiting for a transfer doesn't pin its carrier.
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int inFlight;
+    private Throwable failure;
+
+    public InFlightWindow(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reserves a slot for one more chunk.
+     * @return true if the slot was reserved, false if the window is full.
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (inFlight >= capacity) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees a slot and wakes up the dispatcher.
+     * @param error The error the transfer failed with, or null if it ended normally.
+     */
+    public void release(Throwable error) {
+        lock.lock();
+        try {
+            inFlight = Math.max(0, inFlight - 1);
+            if (error != null && failure == null) {
+                failure = error;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until a transfer ends or the timeout passes.
+     * @param timeoutMillis The maximum time to wait.
+     */
+    public void awaitChange(long timeoutMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            if (inFlight > 0) {
+                changed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of chunks in flight.
+     */
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The first error a transfer failed with, or null.
+     */
+    public Throwable failure() {
+        lock.lock();
+        try {
+            return failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.riftlink.p2p.service;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent request durations and reports percentiles over them.
+ * Used to decide when a request has been running unusually long.
+ */
+public class LatencyTracker {
+    private final long[] samples;
+    private final int minSamples;
+    private int next = 0;
+    private int count = 0;
+
+    /**
+     * @param window The number of recent samples to keep.
+     * @param minSamples The number of samples needed before percentiles are reported.
+     */
+    public LatencyTracker(int window, int minSamples) {
+        this.samples = new long[window];
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Records the duration of a completed request.
+     */
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * @param percentile The percentile to compute, between 0 and 1.
+     * @return The duration below which that share of recent requests finished, in milliseconds,
+     *         or -1 if there are not enough samples yet.
+     */
+    public synchronized long percentile(double percentile) {
+        if (count < minSamples) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+}
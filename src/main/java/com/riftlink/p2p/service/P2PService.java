@@ -135,6 +135,13 @@ public class P2PService {
         return future;
     }
 
+    /**
+     * @return true if an address found in the DHT is our own announcement.
+     */
+    public boolean isLocalPeer(PeerAddress address) {
+        return peer != null && peer.peerID().equals(address.peerId());
+    }
+
     public CompletableFuture<Collection<PeerAddress>> findPeers(String infohash) {
         CompletableFuture<Collection<PeerAddress>> future = new CompletableFuture<>();
         Number160 contentKey = Number160.createHash(infohash);
@@ -0,0 +1,250 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.util.BufferPool;
+import com.riftlink.p2p.util.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocket;
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+/**
+ * A persistent TLS connection to a single peer's upload port.
+ * Chunk requests are sent one after another over the same socket, so the
+ * TCP and TLS handshakes are paid once per connection instead of once per chunk.
+ * The same connection answers which chunks the peer holds, so requests only go to peers that have them.
+ */
+public class PeerConnection implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(PeerConnection.class);
+
+    private final String host;
+    private final SSLSocket socket;
+    private final Writer writer;
+    private final DataInputStream inputStream;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    // Set while a request is on the wire; if it is still set afterwards the stream is out of sync.
+    private volatile boolean broken = false;
+    // Pipelined block requests whose responses have not been read yet.
+    private volatile int pendingBlocks = 0;
+    // When the response being read must be complete, as System.nanoTime(); 0 for no deadline.
+    private long deadline = 0;
+
+    public PeerConnection(String host, SSLSocket socket) throws IOException {
+        this.host = host;
+        this.socket = socket;
+        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        this.inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    /**
+     * Sets how long the next response may take to arrive in full. Time spent waiting on the
+     * bandwidth throttle does not count. The deadline is cleared once the response is read.
+     * @param timeoutMillis The time budget, in milliseconds.
+     */
+    public void setDeadline(long timeoutMillis) {
+        deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+    }
+
+    /**
+     * Requests a single chunk and streams the length-prefixed response into a sink
+     * as it arrives, without holding the whole chunk in memory.
+     * @param infohash The infohash of the file.
+     * @param chunkIndex The index of the chunk to fetch.
+     * @param expectedLength The length the chunk must have.
+     * @param throttle Meters the bytes read from the socket.
+     * @param sink Receives the chunk's bytes in order.
+     * @throws ChunkUnavailableException if the peer does not hold the chunk.
+     * @throws IOException if the connection fails or the peer sends a chunk of the wrong size.
+     */
+    public void transferChunk(String infohash, int chunkIndex, int expectedLength,
+                              BandwidthManager.Throttle throttle, ChunkSink sink) throws IOException {
+        broken = true;
+        writer.write(Constants.CHUNK_REQUEST + "\n" + infohash + "\n" + chunkIndex + "\n");
+        writer.flush();
+
+        armReadTimeout(chunkIndex);
+        int length = inputStream.readInt();
+        if (length < 0) {
+            deadline = 0;
+            // The peer answered cleanly, so the connection can still be reused.
+            broken = false;
+            lastUsed = System.currentTimeMillis();
+            throw new ChunkUnavailableException("Peer " + host + " cannot serve chunk " + chunkIndex, chunkIndex);
+        }
+        if (length != expectedLength) {
+            // Never write a wrongly sized chunk: it would spill into its neighbour's region of the file.
+            throw new IOException("Peer " + host + " sent " + length + " bytes for chunk " + chunkIndex
+                + ", expected " + expectedLength);
+        }
+
+        readPayload(chunkIndex, length, throttle, sink);
+        deadline = 0;
+        broken = false;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Sends a request for a block within a chunk without waiting for the response, so that
+     * several block requests can be pipelined on the connection. Responses arrive in request
+     * order and are read with {@link #receiveBlock}.
+     * @param infohash The infohash of the file.
+     * @param chunkIndex The chunk the block belongs to.
+     * @param offset The offset of the block within the chunk.
+     * @param length The length of the block.
+     * @throws IOException if the request cannot be sent.
+     */
+    public void requestBlock(String infohash, int chunkIndex, int offset, int length) throws IOException {
+        pendingBlocks++;
+        writer.write(Constants.BLOCK_REQUEST + "\n" + infohash + "\n" + chunkIndex + "\n" + offset + "\n" + length + "\n");
+        writer.flush();
+    }
+
+    /**
+     * Reads the response to the oldest outstanding block request and streams it into a sink.
+     * @param chunkIndex The chunk the block belongs to.
+     * @param expectedLength The length that was requested.
+     * @param throttle Meters the bytes read from the socket.
+     * @param sink Receives the block's bytes in order.
+     * @throws ChunkUnavailableException if the peer cannot serve the block.
+     * @throws IOException if the connection fails or the peer sends a block of the wrong size.
+     */
+    public void receiveBlock(int chunkIndex, int expectedLength, BandwidthManager.Throttle throttle, ChunkSink sink) throws IOException {
+        broken = true;
+        armReadTimeout(chunkIndex);
+        int length = inputStream.readInt();
+        pendingBlocks--;
+        if (length < 0) {
+            deadline = 0;
+            broken = false;
+            lastUsed = System.currentTimeMillis();
+            throw new ChunkUnavailableException("Peer " + host + " cannot serve a block of chunk " + chunkIndex, chunkIndex);
+        }
+        if (length != expectedLength) {
+            throw new IOException("Peer " + host + " sent " + length + " bytes for a block of chunk " + chunkIndex
+                + ", expected " + expectedLength);
+        }
+        readPayload(chunkIndex, length, throttle, sink);
+        deadline = 0;
+        broken = false;
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Asks the peer which chunks of a file it holds.
+     * @param infohash The infohash of the file.
+     * @param since A sequence number from an earlier update, or -1 for the peer's whole bitfield.
+     * @param totalChunks The number of chunks in the file, to validate the response.
+     * @return The peer's answer, or null if the peer does not serve the file.
+     * @throws IOException if the connection fails or the response is malformed.
+     */
+    public HaveUpdate requestHaves(String infohash, int since, int totalChunks) throws IOException {
+        broken = true;
+        writer.write(Constants.HAVE_REQUEST + "\n" + infohash + "\n" + since + "\n");
+        writer.flush();
+
+        armReadTimeout(-1);
+        int kind = inputStream.readInt();
+        HaveUpdate update = null;
+        if (kind >= 0) {
+            int sequence = inputStream.readInt();
+            int count = inputStream.readInt();
+            BitSet chunks;
+            if (kind == 0) {
+                if (count < 0 || count > (totalChunks + 7) / 8) {
+                    throw new IOException("Peer " + host + " sent a bitfield of " + count + " bytes for " + totalChunks + " chunks");
+                }
+                byte[] bitfield = new byte[count];
+                inputStream.readFully(bitfield);
+                chunks = BitSet.valueOf(bitfield);
+            } else {
+                if (count < 0 || count > totalChunks) {
+                    throw new IOException("Peer " + host + " announced " + count + " new chunks of " + totalChunks);
+                }
+                chunks = new BitSet(totalChunks);
+                for (int i = 0; i < count; i++) {
+                    int chunkIndex = inputStream.readInt();
+                    if (chunkIndex < 0 || chunkIndex >= totalChunks) {
+                        throw new IOException("Peer " + host + " announced chunk " + chunkIndex + " of " + totalChunks);
+                    }
+                    chunks.set(chunkIndex);
+                }
+            }
+            if (chunks.length() > totalChunks) {
+                throw new IOException("Peer " + host + " claims chunks beyond the end of the file");
+            }
+            update = new HaveUpdate(kind == 0, sequence, chunks);
+        }
+        deadline = 0;
+        broken = false;
+        lastUsed = System.currentTimeMillis();
+        return update;
+    }
+
+    private void readPayload(int chunkIndex, int length, BandwidthManager.Throttle throttle, ChunkSink sink) throws IOException {
+        try (BufferPool.Lease lease = BufferPool.acquire()) {
+            byte[] buffer = lease.array();
+            int remaining = length;
+            while (remaining > 0) {
+                armReadTimeout(chunkIndex);
+                int read = inputStream.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Peer " + host + " closed the connection mid-chunk " + chunkIndex);
+                }
+                // Stalling here stops us draining the socket, so TCP flow control slows the sender down too.
+                long throttleStart = System.nanoTime();
+                throttle.acquire(read);
+                if (deadline != 0) {
+                    deadline += System.nanoTime() - throttleStart;
+                }
+                sink.accept(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * Bounds the next blocking read by the time left until the deadline, so a stalled peer
+     * fails the request instead of holding its thread forever.
+     * @param chunkIndex The chunk being read, or -1 for a chunk list, for the error message.
+     */
+    private void armReadTimeout(int chunkIndex) throws IOException {
+        if (deadline == 0) {
+            socket.setSoTimeout(0);
+            return;
+        }
+        long remainingMillis = (deadline - System.nanoTime()) / 1_000_000;
+        if (remainingMillis <= 0) {
+            throw new SocketTimeoutException("Peer " + host + " missed the deadline for "
+                + (chunkIndex < 0 ? "its chunk list" : "chunk " + chunkIndex));
+        }
+        socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remainingMillis));
+    }
+
+    /**
+     * @return true if the connection is open, in sync, has no unanswered requests, and has not
+     *         been idle long enough for the uploader to have closed it.
+     */
+    public boolean isReusable() {
+        return !broken
+            && pendingBlocks == 0
+            && !socket.isClosed()
+            && System.currentTimeMillis() - lastUsed < Constants.POOLED_CONNECTION_MAX_IDLE_MS;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Error closing connection to {}", host, e);
+        }
+    }
+}
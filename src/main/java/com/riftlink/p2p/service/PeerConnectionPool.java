@@ -0,0 +1,98 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.util.Constants;
+import net.tomp2p.peers.PeerAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Keeps idle {@link PeerConnection}s open per peer so that chunk transfers can reuse them.
+ * A connection is owned by one caller between {@link #acquire} and {@link #release}.
+ */
+public class PeerConnectionPool {
+    private static final Logger logger = LoggerFactory.getLogger(PeerConnectionPool.class);
+
+    private final SecurityService securityService;
+    private final PeerScoreboard scoreboard;
+    private final ConcurrentMap<String, BlockingDeque<PeerConnection>> idleConnections = new ConcurrentHashMap<>();
+
+    /**
+     * @param securityService Opens the TLS connections.
+     * @param scoreboard Receives the handshake time of every new connection, for ranking peers by round-trip time.
+     */
+    public PeerConnectionPool(SecurityService securityService, PeerScoreboard scoreboard) {
+        this.securityService = securityService;
+        this.scoreboard = scoreboard;
+    }
+
+    /**
+     * Returns an idle connection to the peer, or opens a new one if none is available.
+     * @param peer The peer to connect to.
+     * @param connectTimeoutMillis How long connecting and the TLS handshake may each take for a new connection.
+     * @return A connection owned by the caller until it is released or invalidated.
+     * @throws IOException if a new connection cannot be established in time.
+     */
+    public PeerConnection acquire(PeerAddress peer, int connectTimeoutMillis) throws IOException {
+        String host = peer.inetAddress().getHostAddress();
+        BlockingDeque<PeerConnection> idle = idleConnections.get(host);
+        if (idle != null) {
+            PeerConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (connection.isReusable()) {
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        logger.debug("Opening new connection to {}", host);
+        long start = System.nanoTime();
+        SSLSocket socket = securityService.createSocket(host, Constants.UPLOAD_PORT, connectTimeoutMillis);
+        scoreboard.recordHandshake(peer, System.nanoTime() - start);
+        return new PeerConnection(host, socket);
+    }
+
+    /**
+     * Hands a connection back to the pool. Connections that are no longer usable,
+     * or that exceed the per-peer idle limit, are closed instead.
+     * @param connection The connection to return.
+     */
+    public void release(PeerConnection connection) {
+        if (!connection.isReusable()) {
+            connection.close();
+            return;
+        }
+        BlockingDeque<PeerConnection> idle = idleConnections.computeIfAbsent(connection.getHost(),
+            h -> new LinkedBlockingDeque<>(Constants.MAX_IDLE_CONNECTIONS_PER_PEER));
+        if (!idle.offerFirst(connection)) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes a connection that failed mid-transfer so it is never reused.
+     * @param connection The connection to discard.
+     */
+    public void invalidate(PeerConnection connection) {
+        connection.close();
+    }
+
+    /**
+     * Closes every idle connection held by the pool.
+     */
+    public void closeAll() {
+        idleConnections.values().forEach(idle -> {
+            PeerConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                connection.close();
+            }
+        });
+        idleConnections.clear();
+    }
+}
@@ -0,0 +1,239 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.util.Constants;
+import com.riftlink.p2p.util.LocalNetworks;
+import net.tomp2p.peers.PeerAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps a reputation record for every peer we download from.
+ * <p>
+ * Throughput and latency are tracked as moving averages, alongside counts of failed
+ * requests and hash mismatches. The resulting score orders candidate peers, and peers
+ * that serve corrupt data, keep failing, or are far slower than the rest of the swarm
+ * are banned for a while. The scoreboard is shared by all downloads.
+ * <p>
+ * Peers on our own networks get a bonus, so bulk transfers stay on the LAN while LAN peers
+ * have room; distant peers take over as the local request windows fill up. Peers we have not
+ * downloaded from yet are ranked by locality and by the round-trip time their connection
+ * handshakes took.
+ */
+public class PeerScoreboard {
+    private static final Logger logger = LoggerFactory.getLogger(PeerScoreboard.class);
+    private static final double SMOOTHING = 0.3;
+
+    private final ConcurrentMap<PeerAddress, Record> records = new ConcurrentHashMap<>();
+
+    /**
+     * A point-in-time view of a peer's record, for inspection.
+     *
+     * @param peer The peer.
+     * @param throughput The average throughput of successful requests, in bytes per second.
+     * @param latencyMillis The average time to the first byte of a response, in milliseconds.
+     * @param successes The number of chunks delivered.
+     * @param failures The number of failed requests.
+     * @param hashMismatches The number of chunks that failed verification.
+     * @param score The current score; higher is better.
+     * @param bannedUntil The time the current ban ends, in epoch milliseconds, or 0 if not banned.
+     * @param handshakeMillis The average time to open a connection, in milliseconds, or 0 if unknown.
+     * @param local Whether the peer is on one of our own networks.
+     */
+    public record PeerStats(PeerAddress peer, double throughput, double latencyMillis, long successes,
+                            long failures, long hashMismatches, double score, long bannedUntil,
+                            double handshakeMillis, boolean local) {}
+
+    private static class Record {
+        final boolean local;
+        double handshakeMillis;
+        double throughput;
+        double latencyMillis;
+        long successes;
+        long failures;
+        long hashMismatches;
+        int consecutiveFailures;
+        long bannedUntil;
+
+        Record(boolean local) {
+            this.local = local;
+        }
+
+        synchronized double score() {
+            double locality = local ? Constants.LOCAL_PEER_BONUS : 1;
+            if (successes == 0) {
+                if (failures != 0) {
+                    return 0;
+                }
+                // Unknown peers get an optimistic score so they are tried early; nearby, quick-to-answer ones first.
+                return Double.MAX_VALUE / Constants.LOCAL_PEER_BONUS * locality / (1 + handshakeMillis);
+            }
+            double reliability = (double) successes / (successes + failures + Constants.HASH_MISMATCH_PENALTY * hashMismatches);
+            return throughput * reliability * locality;
+        }
+
+        synchronized boolean isBanned(long now) {
+            return bannedUntil > now;
+        }
+
+        synchronized PeerStats snapshot(PeerAddress peer) {
+            return new PeerStats(peer, throughput, latencyMillis, successes, failures, hashMismatches, score(),
+                bannedUntil > System.currentTimeMillis() ? bannedUntil : 0, handshakeMillis, local);
+        }
+    }
+
+    /**
+     * Records a chunk that was delivered and verified.
+     * @param peer The peer that served it.
+     * @param bytes The size of the chunk.
+     * @param latencyNanos The time until the first byte arrived.
+     * @param durationNanos The total time of the request.
+     */
+    public void recordSuccess(PeerAddress peer, long bytes, long latencyNanos, long durationNanos) {
+        Record record = recordFor(peer);
+        double throughput = bytes / Math.max(1e-9, durationNanos / 1e9);
+        synchronized (record) {
+            record.throughput = record.successes == 0 ? throughput : smooth(record.throughput, throughput);
+            record.latencyMillis = record.successes == 0 ? latencyNanos / 1e6 : smooth(record.latencyMillis, latencyNanos / 1e6);
+            record.successes++;
+            record.consecutiveFailures = 0;
+        }
+        banIfSlow(peer, record);
+    }
+
+    /**
+     * Records how long opening a connection to a peer took, TCP connect and TLS handshake together.
+     * This is a few round trips, so it ranks peers we have not downloaded from yet.
+     */
+    public void recordHandshake(PeerAddress peer, long durationNanos) {
+        Record record = recordFor(peer);
+        synchronized (record) {
+            double millis = durationNanos / 1e6;
+            record.handshakeMillis = record.handshakeMillis == 0 ? millis : smooth(record.handshakeMillis, millis);
+        }
+    }
+
+    /**
+     * Records a request that failed because of a connection error or a stalled transfer.
+     */
+    public void recordFailure(PeerAddress peer) {
+        Record record = recordFor(peer);
+        synchronized (record) {
+            record.failures++;
+            if (++record.consecutiveFailures >= Constants.MAX_CONSECUTIVE_FAILURES) {
+                ban(peer, record, Constants.FAILURE_BAN_MS, "repeated failures");
+                record.consecutiveFailures = 0;
+            }
+        }
+    }
+
+    /**
+     * Records a chunk that failed hash verification. Corrupt data is treated far more
+     * harshly than a failure, since it may be a deliberate poisoning attempt.
+     */
+    public void recordHashMismatch(PeerAddress peer) {
+        Record record = recordFor(peer);
+        synchronized (record) {
+            record.hashMismatches++;
+            ban(peer, record, Constants.HASH_MISMATCH_BAN_MS * record.hashMismatches, "corrupt data");
+        }
+    }
+
+    /**
+     * @return true if the peer is currently banned.
+     */
+    public boolean isBanned(PeerAddress peer) {
+        Record record = records.get(peer);
+        return record != null && record.isBanned(System.currentTimeMillis());
+    }
+
+    /**
+     * @return The score of a peer; higher is better.
+     */
+    public double score(PeerAddress peer) {
+        return recordFor(peer).score();
+    }
+
+    /**
+     * @return How long connecting to a peer may take, from its observed latency, in milliseconds.
+     */
+    public int connectTimeoutMillis(PeerAddress peer) {
+        Record record = records.get(peer);
+        if (record == null) {
+            return Constants.CONNECT_TIMEOUT_MS;
+        }
+        synchronized (record) {
+            if (record.successes == 0) {
+                return Constants.CONNECT_TIMEOUT_MS;
+            }
+            long timeout = (long) (Constants.DEADLINE_SAFETY_FACTOR * record.latencyMillis);
+            return (int) Math.max(Constants.MIN_CONNECT_TIMEOUT_MS, Math.min(Constants.CONNECT_TIMEOUT_MS, timeout));
+        }
+    }
+
+    /**
+     * @param peer The peer serving the request.
+     * @param bytes The size of the response.
+     * @return How long a response of that size may take, from the peer's observed latency and throughput, in milliseconds.
+     */
+    public long transferDeadlineMillis(PeerAddress peer, long bytes) {
+        Record record = records.get(peer);
+        if (record == null) {
+            return Constants.DEFAULT_TRANSFER_DEADLINE_MS;
+        }
+        synchronized (record) {
+            if (record.successes == 0 || record.throughput <= 0) {
+                return Constants.DEFAULT_TRANSFER_DEADLINE_MS;
+            }
+            double expectedMillis = record.latencyMillis + bytes * 1000.0 / record.throughput;
+            long deadline = (long) (Constants.DEADLINE_SAFETY_FACTOR * expectedMillis);
+            return Math.max(Constants.MIN_TRANSFER_DEADLINE_MS, Math.min(Constants.MAX_TRANSFER_DEADLINE_MS, deadline));
+        }
+    }
+
+    /**
+     * @return A snapshot of every peer's record.
+     */
+    public List<PeerStats> getStats() {
+        List<PeerStats> stats = new ArrayList<>();
+        records.forEach((peer, record) -> stats.add(record.snapshot(peer)));
+        return stats;
+    }
+
+    private void banIfSlow(PeerAddress peer, Record record) {
+        // LAN peers are naturally much faster; a distant peer is only compared with other distant peers.
+        double best = records.values().stream()
+            .filter(other -> other != record && other.local == record.local)
+            .mapToDouble(other -> {
+                synchronized (other) {
+                    return other.successes >= Constants.MIN_SAMPLES_FOR_SLOW_BAN && !other.isBanned(System.currentTimeMillis())
+                        ? other.throughput : 0;
+                }
+            })
+            .max().orElse(0);
+        synchronized (record) {
+            // Only ban for slowness when a clearly faster peer is around to take over.
+            if (record.successes >= Constants.MIN_SAMPLES_FOR_SLOW_BAN
+                && record.throughput < best * Constants.SLOW_PEER_FRACTION) {
+                ban(peer, record, Constants.SLOW_PEER_BAN_MS, "throughput far below the swarm");
+            }
+        }
+    }
+
+    private void ban(PeerAddress peer, Record record, long durationMillis, String reason) {
+        record.bannedUntil = Math.max(record.bannedUntil, System.currentTimeMillis() + durationMillis);
+        logger.warn("Banning peer {} for {} s: {}", peer, durationMillis / 1000, reason);
+    }
+
+    private Record recordFor(PeerAddress peer) {
+        return records.computeIfAbsent(peer, p -> new Record(LocalNetworks.isLocal(p.inetAddress())));
+    }
+
+    private static double smooth(double average, double sample) {
+        return average + SMOOTHING * (sample - average);
+    }
+}
@@ -0,0 +1,181 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.util.Constants;
+import net.tomp2p.peers.PeerAddress;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive per-peer limits on the number of outstanding chunk requests.
+ * <p>
+ * Each peer gets a window that follows an AIMD rule: after every window's worth of
+ * completed requests the delivered throughput is compared with the previous round;
+ * the window grows by one while throughput keeps rising, and is cut back on timeouts,
+ * failures or a clear slowdown. Fast peers thus open up enough parallel requests to
+ * fill their bandwidth-delay product, while slow peers hold on to only a few.
+ * Windows are shared by all downloads, since they all compete for the same peer link.
+ */
+public class PeerWindows {
+    private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+    // A Lock rather than a monitor, so virtual threads waiting for a slot don't pin their carriers.
+    private final Lock releaseLock = new ReentrantLock();
+    private final Condition released = releaseLock.newCondition();
+
+    /**
+     * The request window of a single peer.
+     */
+    public static class Window {
+        private int limit = Constants.INITIAL_PEER_WINDOW;
+        private int inFlight = 0;
+
+        // Throughput measurement for the current round of requests.
+        private long roundStart = System.nanoTime();
+        private long roundBytes = 0;
+        private int roundCompletions = 0;
+        private double lastRoundThroughput = 0;
+
+        synchronized boolean tryAcquire() {
+            if (inFlight >= limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+
+        synchronized boolean hasRoom() {
+            return inFlight < limit;
+        }
+
+        synchronized void release() {
+            inFlight = Math.max(0, inFlight - 1);
+        }
+
+        synchronized void onSuccess(long bytes) {
+            roundBytes += bytes;
+            if (++roundCompletions < limit) {
+                return;
+            }
+            long now = System.nanoTime();
+            double throughput = roundBytes / Math.max(1e-9, (now - roundStart) / 1e9);
+            if (lastRoundThroughput == 0 || throughput > lastRoundThroughput * Constants.WINDOW_GROWTH_THRESHOLD) {
+                limit = Math.min(Constants.MAX_PEER_WINDOW, limit + 1);
+            } else if (throughput < lastRoundThroughput * Constants.WINDOW_SLOWDOWN_THRESHOLD) {
+                decrease();
+            }
+            lastRoundThroughput = throughput;
+            startRound(now);
+        }
+
+        synchronized void onFailure() {
+            decrease();
+            startRound(System.nanoTime());
+        }
+
+        public synchronized int getLimit() {
+            return limit;
+        }
+
+        public synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        private void decrease() {
+            limit = Math.max(1, limit / 2);
+        }
+
+        private void startRound(long now) {
+            roundStart = now;
+            roundBytes = 0;
+            roundCompletions = 0;
+        }
+    }
+
+    /**
+     * @return The window of a peer, created on first use.
+     */
+    public Window windowFor(PeerAddress peer) {
+        return windows.computeIfAbsent(peer.inetAddress().getHostAddress(), h -> new Window());
+    }
+
+    /**
+     * Reserves a request slot with the first candidate peer whose window has room.
+     * @param candidates The peers to try, in order of preference.
+     * @return The peer whose slot was reserved, or null if every window is full.
+     */
+    public PeerAddress tryAcquireAny(List<PeerAddress> candidates) {
+        for (PeerAddress peer : candidates) {
+            if (windowFor(peer).tryAcquire()) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a peer's window has room for another request.
+     */
+    public boolean hasRoom(PeerAddress peer) {
+        return windowFor(peer).hasRoom();
+    }
+
+    /**
+     * Reserves a request slot with a specific peer.
+     * @return true if the slot was reserved.
+     */
+    public boolean tryAcquire(PeerAddress peer) {
+        return windowFor(peer).tryAcquire();
+    }
+
+    /**
+     * Frees a request slot and wakes up anyone waiting for one.
+     * @param peer The peer the request was sent to.
+     * @param bytes The number of bytes delivered, or a negative value if the request failed.
+     */
+    public void release(PeerAddress peer, long bytes) {
+        Window window = windowFor(peer);
+        if (bytes >= 0) {
+            window.onSuccess(bytes);
+        } else {
+            window.onFailure();
+        }
+        window.release();
+        signalRelease();
+    }
+
+    /**
+     * Frees a request slot without feeding the outcome into the window, for requests
+     * whose result says nothing about the peer's link (for example a missing chunk).
+     */
+    public void release(PeerAddress peer) {
+        windowFor(peer).release();
+        signalRelease();
+    }
+
+    private void signalRelease() {
+        releaseLock.lock();
+        try {
+            released.signalAll();
+        } finally {
+            releaseLock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until some request slot is released or the timeout passes.
+     * @param timeoutMillis The maximum time to wait.
+     */
+    public void awaitRelease(long timeoutMillis) throws InterruptedException {
+        releaseLock.lock();
+        try {
+            released.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            releaseLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.riftlink.p2p.service;
+
+import net.tomp2p.peers.PeerAddress;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Decides which chunk of a download to fetch next and from which peers.
+ * <p>
+ * The picker tracks which peers hold which chunks and how many copies of each chunk
+ * exist in the swarm. Chunks are handed out rarest first, with ties broken randomly so
+ * that concurrent downloaders don't all chase the same chunk. In sequential mode chunks are
+ * instead handed out in file order from a playhead, so a reader can consume the file while it
+ * downloads; chunks behind the playhead are still picked rarest first once nothing ahead is left. Peers are offered by their
+ * {@link PeerScoreboard} score discounted by their current load, so requests favour good
+ * and nearby peers while still spreading over the whole swarm; banned peers are not offered at all.
+ * Only chunks held by a peer that can take another request are handed out, so busy peers never
+ * stall the chunks idle peers could serve.
+ * All methods are thread-safe.
+ */
+public class PiecePicker {
+    private final int totalChunks;
+    private final int[] availability;
+    private final int[] tieBreaker;
+    private final BitSet completed;
+    private final Map<PeerAddress, BitSet> peerChunks = new HashMap<>();
+    private final Map<PeerAddress, Integer> peerLoad = new HashMap<>();
+    private final Random random = new Random();
+    private final PeerScoreboard scoreboard;
+
+    // Chunks that are neither completed nor currently requested, rarest first.
+    // Chunks nobody holds sort last so they never block the chunks we can fetch.
+    private final TreeSet<Integer> pending;
+    // The same chunks by index, for sequential picking.
+    private final BitSet pendingByIndex;
+    // The chunk sequential picking starts from, or -1 for rarest-first.
+    private int playhead = -1;
+
+    public PiecePicker(int totalChunks, PeerScoreboard scoreboard) {
+        this.totalChunks = totalChunks;
+        this.scoreboard = scoreboard;
+        this.availability = new int[totalChunks];
+        this.tieBreaker = new int[totalChunks];
+        this.completed = new BitSet(totalChunks);
+        this.pendingByIndex = new BitSet(totalChunks);
+        this.pending = new TreeSet<>(Comparator
+            .comparingInt((Integer i) -> availability[i] == 0 ? Integer.MAX_VALUE : availability[i])
+            .thenComparingInt(i -> tieBreaker[i])
+            .thenComparingInt(i -> i));
+
+        for (int i = 0; i < totalChunks; i++) {
+            tieBreaker[i] = random.nextInt();
+            addPending(i);
+        }
+    }
+
+    /**
+     * Registers a peer and the chunks it holds.
+     * @param peer The peer to add.
+     * @param chunks The chunks the peer holds, or null if it is a seeder holding every chunk.
+     */
+    public synchronized void addPeer(PeerAddress peer, BitSet chunks) {
+        if (peerChunks.containsKey(peer)) {
+            return;
+        }
+        BitSet held = new BitSet(totalChunks);
+        if (chunks == null) {
+            held.set(0, totalChunks);
+        } else {
+            held.or(chunks);
+        }
+        peerChunks.put(peer, held);
+        peerLoad.putIfAbsent(peer, 0);
+        for (int i = held.nextSetBit(0); i >= 0; i = held.nextSetBit(i + 1)) {
+            changeAvailability(i, 1);
+        }
+    }
+
+    /**
+     * Records chunks a known peer has gained since it was added.
+     * @param peer The peer.
+     * @param chunks The chunks the peer now holds; chunks it was already known to hold are ignored.
+     * @return true if the peer gained a chunk that has not been completed yet.
+     */
+    public synchronized boolean addChunks(PeerAddress peer, BitSet chunks) {
+        BitSet held = peerChunks.get(peer);
+        if (held == null) {
+            return false;
+        }
+        boolean useful = false;
+        for (int i = chunks.nextSetBit(0); i >= 0 && i < totalChunks; i = chunks.nextSetBit(i + 1)) {
+            if (!held.get(i)) {
+                held.set(i);
+                changeAvailability(i, 1);
+                useful |= !completed.get(i);
+            }
+        }
+        return useful;
+    }
+
+    /**
+     * @return true if a peer is known to hold every chunk.
+     */
+    public synchronized boolean holdsAll(PeerAddress peer) {
+        BitSet held = peerChunks.get(peer);
+        return held != null && held.cardinality() == totalChunks;
+    }
+
+    /**
+     * Forgets a peer that has left the swarm.
+     * @param peer The peer to remove.
+     */
+    public synchronized void removePeer(PeerAddress peer) {
+        BitSet held = peerChunks.remove(peer);
+        peerLoad.remove(peer);
+        if (held == null) {
+            return;
+        }
+        for (int i = held.nextSetBit(0); i >= 0; i = held.nextSetBit(i + 1)) {
+            changeAvailability(i, -1);
+        }
+    }
+
+    /**
+     * Records that a peer turned out not to hold a chunk it was assumed to have.
+     */
+    public synchronized void peerLacksChunk(PeerAddress peer, int chunkIndex) {
+        BitSet held = peerChunks.get(peer);
+        if (held != null && held.get(chunkIndex)) {
+            held.clear(chunkIndex);
+            changeAvailability(chunkIndex, -1);
+        }
+    }
+
+    /**
+     * Reserves the rarest chunk that still needs fetching and that some unbanned peer able to
+     * take a request holds, so one chunk whose holders are all busy never holds up the others.
+     * @param canRequest Whether a peer has room for another request right now.
+     * @return The chunk index, or -1 if no outstanding chunk is held by a peer that can take it.
+     */
+    public synchronized int nextChunk(Predicate<PeerAddress> canRequest) {
+        if (pending.isEmpty()) {
+            return -1;
+        }
+        List<BitSet> ready = new ArrayList<>();
+        peerChunks.forEach((peer, held) -> {
+            if (!scoreboard.isBanned(peer) && canRequest.test(peer)) {
+                ready.add(held);
+            }
+        });
+        if (ready.isEmpty()) {
+            return -1;
+        }
+        if (playhead >= 0) {
+            for (int i = pendingByIndex.nextSetBit(playhead); i >= 0; i = pendingByIndex.nextSetBit(i + 1)) {
+                if (availability[i] > 0 && isHeldByAny(ready, i)) {
+                    removePending(i);
+                    return i;
+                }
+            }
+        }
+        for (int chunkIndex : pending) {
+            // Chunks nobody holds sort last, so nothing after this one can be fetched either.
+            if (availability[chunkIndex] == 0) {
+                return -1;
+            }
+            if (isHeldByAny(ready, chunkIndex)) {
+                removePending(chunkIndex);
+                return chunkIndex;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if an outstanding chunk that is not in flight is held by any known peer, busy or banned.
+     */
+    public synchronized boolean hasFetchableChunk() {
+        return !pending.isEmpty() && availability[pending.first()] > 0;
+    }
+
+    /**
+     * Switches to sequential picking from a chunk onwards, or back to rarest-first.
+     * @param chunkIndex The chunk a reader needs next, or -1 for rarest-first.
+     */
+    public synchronized void setPlayhead(int chunkIndex) {
+        this.playhead = chunkIndex < 0 ? -1 : Math.min(chunkIndex, totalChunks);
+    }
+
+    /**
+     * Lists the unbanned peers holding a chunk, best first.
+     * A peer's score is divided by one plus its in-flight requests, so a busy good peer
+     * can still be passed over for an idle one.
+     * @param chunkIndex The chunk to look up.
+     * @return The candidate peers in the order they should be tried.
+     */
+    public synchronized List<PeerAddress> peersFor(int chunkIndex) {
+        List<PeerAddress> holders = new ArrayList<>();
+        peerChunks.forEach((peer, held) -> {
+            if (held.get(chunkIndex) && !scoreboard.isBanned(peer)) {
+                holders.add(peer);
+            }
+        });
+        // Shuffle first so the stable sort breaks ties randomly.
+        Collections.shuffle(holders, random);
+        holders.sort(Comparator.comparingDouble(
+            (PeerAddress peer) -> scoreboard.score(peer) / (1 + peerLoad.getOrDefault(peer, 0))).reversed());
+        return holders;
+    }
+
+    /**
+     * @return true if any known peer holds the chunk, banned or not.
+     */
+    public synchronized boolean hasHolder(int chunkIndex) {
+        return availability[chunkIndex] > 0;
+    }
+
+    /**
+     * Marks a request to a peer as started, counting it towards that peer's load.
+     */
+    public synchronized void requestStarted(PeerAddress peer) {
+        peerLoad.computeIfPresent(peer, (p, load) -> load + 1);
+    }
+
+    /**
+     * Marks a request to a peer as finished, whatever its outcome.
+     */
+    public synchronized void requestFinished(PeerAddress peer) {
+        peerLoad.computeIfPresent(peer, (p, load) -> Math.max(0, load - 1));
+    }
+
+    /**
+     * Marks a reserved chunk as downloaded and verified.
+     */
+    public synchronized void markCompleted(int chunkIndex) {
+        completed.set(chunkIndex);
+        removePending(chunkIndex);
+    }
+
+    /**
+     * Returns a reserved chunk to the pending set after a failed attempt.
+     */
+    public synchronized void markFailed(int chunkIndex) {
+        if (!completed.get(chunkIndex)) {
+            addPending(chunkIndex);
+        }
+    }
+
+    /**
+     * @return true once every chunk has been completed.
+     */
+    public synchronized boolean isComplete() {
+        return completed.cardinality() == totalChunks;
+    }
+
+    /**
+     * @return The number of completed chunks.
+     */
+    public synchronized int completedCount() {
+        return completed.cardinality();
+    }
+
+    public synchronized boolean isCompleted(int chunkIndex) {
+        return completed.get(chunkIndex);
+    }
+
+    /**
+     * @return The chunks that have not been completed yet, whether pending or in flight.
+     */
+    public synchronized List<Integer> missingChunks() {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = completed.nextClearBit(0); i < totalChunks; i = completed.nextClearBit(i + 1)) {
+            missing.add(i);
+        }
+        return missing;
+    }
+
+    private static boolean isHeldByAny(List<BitSet> holdings, int chunkIndex) {
+        for (BitSet held : holdings) {
+            if (held.get(chunkIndex)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addPending(int chunkIndex) {
+        pending.add(chunkIndex);
+        pendingByIndex.set(chunkIndex);
+    }
+
+    private void removePending(int chunkIndex) {
+        pending.remove(chunkIndex);
+        pendingByIndex.clear(chunkIndex);
+    }
+
+    private void changeAvailability(int chunkIndex, int delta) {
+        // The TreeSet orders by availability, so the entry must be re-inserted around the change.
+        boolean wasPending = pending.remove(chunkIndex);
+        availability[chunkIndex] = Math.max(0, availability[chunkIndex] + delta);
+        if (wasPending) {
+            pending.add(chunkIndex);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.ui.model.DownloadItem;
+import com.riftlink.p2p.util.Constants;
+import javafx.application.Platform;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the progress of running downloads and publishes it to the UI.
+ * <p>
+ * Download threads only bump counters on a {@link Meter}. At a fixed rate the sampler
+ * reads every meter, computes speed over a sliding window and the resulting ETA, and
+ * applies all changed values in a single {@link Platform#runLater} call. The UI thus sees
+ * at most one batch of property updates per interval, however many chunks complete.
+ */
+public class ProgressSampler {
+    private final Set<Meter> meters = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "progress-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Collects the counters of one download. All methods may be called from any thread.
+     */
+    public static class Meter {
+        private final DownloadItem item;
+        private final long totalBytes;
+        private final LongAdder transferred = new LongAdder();
+        private final AtomicLong completed = new AtomicLong();
+        private volatile String status;
+
+        // (time, transferred) samples within the speed window; only touched by the sampler thread.
+        private final Deque<long[]> samples = new ArrayDeque<>();
+        private double lastProgress = -1;
+        private String lastSpeed;
+        private String lastEta;
+        private String lastStatus;
+
+        private Meter(DownloadItem item, long totalBytes) {
+            this.item = item;
+            this.totalBytes = totalBytes;
+        }
+
+        /**
+         * Counts bytes received from the network, whether or not they end up verified.
+         */
+        public void addTransferred(long bytes) {
+            transferred.add(bytes);
+        }
+
+        /**
+         * Counts bytes of verified chunks towards the download's progress.
+         */
+        public void addCompleted(long bytes) {
+            completed.addAndGet(bytes);
+        }
+
+        /**
+         * Sets the status shown for the download, published with the next batch.
+         */
+        public void setStatus(String status) {
+            this.status = status;
+        }
+
+        /**
+         * Takes a sample and returns the UI update for whatever changed since the last one.
+         * @return The update to apply on the JavaFX thread, or null if nothing changed.
+         */
+        private Runnable sample(long now, boolean stopped) {
+            long total = transferred.sum();
+            samples.addLast(new long[] { now, total });
+            while (samples.size() > 2 && now - samples.peekFirst()[0] > Constants.SPEED_WINDOW_MS * 1_000_000L) {
+                samples.removeFirst();
+            }
+            long[] oldest = samples.peekFirst();
+            double elapsedSeconds = (now - oldest[0]) / 1e9;
+            double bytesPerSecond = stopped || elapsedSeconds <= 0 ? 0 : (total - oldest[1]) / elapsedSeconds;
+
+            long done = Math.min(completed.get(), totalBytes);
+            double progress = totalBytes == 0 ? 1.0 : (double) done / totalBytes;
+            String speed = formatRate(bytesPerSecond);
+            String eta = stopped || done == totalBytes ? "" : formatEta(totalBytes - done, bytesPerSecond);
+            String currentStatus = status;
+
+            boolean changed = progress != lastProgress || !speed.equals(lastSpeed) || !eta.equals(lastEta)
+                || (currentStatus != null && !currentStatus.equals(lastStatus));
+            if (!changed) {
+                return null;
+            }
+            lastProgress = progress;
+            lastSpeed = speed;
+            lastEta = eta;
+            lastStatus = currentStatus;
+            return () -> {
+                item.setProgress(progress);
+                item.setSpeed(speed);
+                item.setEta(eta);
+                if (currentStatus != null) {
+                    item.setStatus(currentStatus);
+                }
+            };
+        }
+    }
+
+    public ProgressSampler() {
+        scheduler.scheduleAtFixedRate(this::publish, Constants.PROGRESS_UPDATE_INTERVAL_MS,
+            Constants.PROGRESS_UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts tracking a download.
+     * @param item The UI row to update.
+     * @param totalBytes The size of the file being downloaded.
+     * @return The meter the download reports to.
+     */
+    public Meter track(DownloadItem item, long totalBytes) {
+        Meter meter = new Meter(item, totalBytes);
+        meters.add(meter);
+        return meter;
+    }
+
+    /**
+     * Stops tracking a download, publishing its final state with the speed reset to zero.
+     */
+    public void untrack(Meter meter) {
+        if (meters.remove(meter)) {
+            scheduler.execute(() -> apply(meter.sample(System.nanoTime(), true)));
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void publish() {
+        long now = System.nanoTime();
+        List<Runnable> updates = new ArrayList<>();
+        for (Meter meter : meters) {
+            Runnable update = meter.sample(now, false);
+            if (update != null) {
+                updates.add(update);
+            }
+        }
+        if (!updates.isEmpty()) {
+            Platform.runLater(() -> updates.forEach(Runnable::run));
+        }
+    }
+
+    private static void apply(Runnable update) {
+        if (update != null) {
+            Platform.runLater(update);
+        }
+    }
+
+    private static String formatRate(double bytesPerSecond) {
+        if (bytesPerSecond >= 1024 * 1024) {
+            return String.format("%.1f MB/s", bytesPerSecond / (1024 * 1024));
+        }
+        return String.format("%.0f KB/s", bytesPerSecond / 1024);
+    }
+
+    private static String formatEta(long remainingBytes, double bytesPerSecond) {
+        if (bytesPerSecond < 1) {
+            return "--";
+        }
+        long seconds = (long) Math.ceil(remainingBytes / bytesPerSecond);
+        if (seconds >= 3600) {
+            return String.format("%dh %02dm", seconds / 3600, seconds % 3600 / 60);
+        }
+        if (seconds >= 60) {
+            return String.format("%dm %02ds", seconds / 60, seconds % 60);
+        }
+        return seconds + "s";
+    }
+}
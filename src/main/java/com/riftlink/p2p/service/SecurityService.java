@@ -1,11 +1,14 @@
 package com.riftlink.p2p.service;
 
+import com.riftlink.p2p.util.Constants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.*;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -61,8 +64,30 @@ public class SecurityService {
      * @throws IOException if an I/O error occurs.
      */
     public SSLSocket createSocket(String host, int port) throws IOException {
-        SSLSocketFactory factory = sslContext.getSocketFactory();
-        return (SSLSocket) factory.createSocket(host, port);
+        return createSocket(host, port, Constants.CONNECT_TIMEOUT_MS);
+    }
+
+    /**
+     * Creates a secure client socket, bounding both the TCP connect and the TLS handshake.
+     * @param host The host to connect to.
+     * @param port The port to connect to.
+     * @param timeoutMillis The maximum time each of the connect and the handshake may take.
+     * @return An SSLSocket with a completed handshake and no read timeout.
+     * @throws IOException if an I/O error occurs or a deadline passes.
+     */
+    public SSLSocket createSocket(String host, int port, int timeoutMillis) throws IOException {
+        Socket plain = new Socket();
+        try {
+            plain.connect(new InetSocketAddress(host, port), timeoutMillis);
+            SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(plain, host, port, true);
+            socket.setSoTimeout(timeoutMillis);
+            socket.startHandshake();
+            socket.setSoTimeout(0);
+            return socket;
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
     }
 
     private SSLContext createSslContext(KeyStore keyStore) throws NoSuchAlgorithmException, KeyManagementException, UnrecoverableKeyException, KeyStoreException {
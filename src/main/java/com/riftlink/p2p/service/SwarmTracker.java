@@ -0,0 +1,134 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.util.Constants;
+import net.tomp2p.peers.PeerAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the peer list of one download in step with the DHT.
+ * <p>
+ * The tracker looks the file up periodically and whenever the download runs short of peers,
+ * and reports peers that joined since the last lookup and peers that have been missing from
+ * several lookups in a row. A single missed lookup is tolerated, since DHT replies are often
+ * incomplete. Lookups are asynchronous, so the scheduler that drives them is never blocked;
+ * listeners run on the given executor.
+ */
+public class SwarmTracker {
+    private static final Logger logger = LoggerFactory.getLogger(SwarmTracker.class);
+
+    /**
+     * Receives changes to the swarm.
+     */
+    public interface Listener {
+        void peersJoined(List<PeerAddress> peers);
+
+        void peerLeft(PeerAddress peer);
+    }
+
+    private final String infohash;
+    private final P2PService p2pService;
+    private final Executor executor;
+    private final Listener listener;
+
+    // Known peers, with the number of consecutive lookups each has been missing from. Guarded by this.
+    private final Map<PeerAddress, Integer> missedLookups = new HashMap<>();
+    private CompletableFuture<Void> lookup;
+    private long lastLookup;
+    private ScheduledFuture<?> refresher;
+
+    public SwarmTracker(String infohash, P2PService p2pService, Executor executor, Listener listener) {
+        this.infohash = infohash;
+        this.p2pService = p2pService;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts refreshing the swarm every {@link Constants#SWARM_REFRESH_INTERVAL_MS}.
+     */
+    public synchronized void start(ScheduledExecutorService scheduler) {
+        if (refresher == null) {
+            refresher = scheduler.scheduleWithFixedDelay(this::refresh,
+                Constants.SWARM_REFRESH_INTERVAL_MS, Constants.SWARM_REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.cancel(false);
+            refresher = null;
+        }
+    }
+
+    /**
+     * Looks the file up now, unless a lookup is running or the last one finished less than
+     * {@link Constants#PEER_REDISCOVERY_INTERVAL_MS} ago.
+     * @return A future that completes once the listener has been told about the result.
+     */
+    public synchronized CompletableFuture<Void> refresh() {
+        if (lookup != null && !lookup.isDone()) {
+            return lookup;
+        }
+        if (lookup != null && System.currentTimeMillis() - lastLookup < Constants.PEER_REDISCOVERY_INTERVAL_MS) {
+            return CompletableFuture.completedFuture(null);
+        }
+        lookup = p2pService.findPeers(infohash)
+            .thenAcceptAsync(this::merge, executor)
+            .exceptionally(e -> {
+                logger.warn("Peer lookup for {} failed: {}", infohash, e.getMessage());
+                return null;
+            })
+            .whenComplete((result, e) -> {
+                synchronized (this) {
+                    lastLookup = System.currentTimeMillis();
+                }
+            });
+        return lookup;
+    }
+
+    /**
+     * @return The number of peers currently in the swarm.
+     */
+    public synchronized int size() {
+        return missedLookups.size();
+    }
+
+    private void merge(Collection<PeerAddress> found) {
+        List<PeerAddress> joined = new ArrayList<>();
+        List<PeerAddress> left = new ArrayList<>();
+        synchronized (this) {
+            Set<PeerAddress> current = new HashSet<>();
+            for (PeerAddress peer : found) {
+                if (p2pService.isLocalPeer(peer) || !current.add(peer)) continue;
+                if (missedLookups.put(peer, 0) == null) {
+                    joined.add(peer);
+                }
+            }
+            Iterator<Map.Entry<PeerAddress, Integer>> known = missedLookups.entrySet().iterator();
+            while (known.hasNext()) {
+                Map.Entry<PeerAddress, Integer> entry = known.next();
+                if (current.contains(entry.getKey())) continue;
+                entry.setValue(entry.getValue() + 1);
+                if (entry.getValue() >= Constants.SWARM_MISSED_LOOKUPS_BEFORE_DROP) {
+                    known.remove();
+                    left.add(entry.getKey());
+                }
+            }
+        }
+        if (!joined.isEmpty() || !left.isEmpty()) {
+            logger.info("Swarm of {}: {} peers joined, {} left", infohash, joined.size(), left.size());
+        }
+        left.forEach(listener::peerLeft);
+        if (!joined.isEmpty()) {
+            listener.peersJoined(joined);
+        }
+    }
+}
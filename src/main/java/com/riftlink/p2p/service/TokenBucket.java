@@ -0,0 +1,91 @@
+package com.riftlink.p2p.service;
+
+import com.riftlink.p2p.util.Constants;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket limiting a byte rate.
+ * <p>
+ * Tokens accrue at the configured rate up to a burst of {@link Constants#BANDWIDTH_BURST_MS}
+ * worth of traffic. Callers take tokens for the bytes they move and may push the bucket into
+ * debt; they then sleep until the debt has been paid back, so later callers queue up behind
+ * them. The rate can be changed at any time; a rate of zero or less means unlimited.
+ */
+public final class TokenBucket {
+    private final ReentrantLock lock = new ReentrantLock();
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Changes the rate limit. Any burst allowance above the new limit's capacity is dropped.
+     * @param bytesPerSecond The new limit in bytes per second, or zero for unlimited.
+     */
+    public void setRate(long bytesPerSecond) {
+        lock.lock();
+        try {
+            refill();
+            this.bytesPerSecond = Math.max(0, bytesPerSecond);
+            tokens = isUnlimited() ? 0 : Math.min(tokens, capacity());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The rate limit in bytes per second, or zero if unlimited.
+     */
+    public long getRate() {
+        lock.lock();
+        try {
+            return bytesPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes tokens for a number of bytes, blocking until the bucket is out of debt.
+     * @param bytes The number of bytes about to be, or just, transferred.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long waitNanos;
+        lock.lock();
+        try {
+            if (isUnlimited()) {
+                return;
+            }
+            refill();
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / bytesPerSecond) : 0;
+        } finally {
+            lock.unlock();
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private boolean isUnlimited() {
+        return bytesPerSecond <= 0;
+    }
+
+    private double capacity() {
+        return Math.max(Constants.TRANSFER_BUFFER_SIZE, bytesPerSecond * Constants.BANDWIDTH_BURST_MS / 1000.0);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (!isUnlimited()) {
+            tokens = Math.min(capacity(), tokens + (now - lastRefill) / 1e9 * bytesPerSecond);
+        }
+        lastRefill = now;
+    }
+}
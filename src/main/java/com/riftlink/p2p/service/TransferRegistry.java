@@ -0,0 +1,72 @@
+package com.riftlink.p2p.service;
+
+import net.tomp2p.peers.PeerAddress;
+
+import java.util.*;
+
+/**
+ * Tracks which connections are currently transferring each chunk of a download,
+ * so that redundant requests can be aborted as soon as one copy wins.
+ */
+public class TransferRegistry {
+    private final Map<Integer, Map<PeerConnection, PeerAddress>> active = new HashMap<>();
+
+    /**
+     * Records that a connection has started transferring a chunk.
+     */
+    public synchronized void register(int chunkIndex, PeerAddress peer, PeerConnection connection) {
+        active.computeIfAbsent(chunkIndex, i -> new HashMap<>()).put(connection, peer);
+    }
+
+    /**
+     * Records that a connection has stopped transferring a chunk.
+     */
+    public synchronized void unregister(int chunkIndex, PeerConnection connection) {
+        Map<PeerConnection, PeerAddress> transfers = active.get(chunkIndex);
+        if (transfers != null) {
+            transfers.remove(connection);
+            if (transfers.isEmpty()) {
+                active.remove(chunkIndex);
+            }
+        }
+    }
+
+    /**
+     * @return The peers currently transferring a chunk.
+     */
+    public synchronized Set<PeerAddress> peersFor(int chunkIndex) {
+        Map<PeerConnection, PeerAddress> transfers = active.get(chunkIndex);
+        return transfers == null ? Collections.emptySet() : new HashSet<>(transfers.values());
+    }
+
+    /**
+     * Closes every connection still transferring a chunk other than the winning one.
+     * The aborted transfers fail with an I/O error and their connections are discarded.
+     * @param chunkIndex The chunk that has been completed.
+     * @param winner The connection that delivered the verified copy, or null.
+     */
+    public void abortOthers(int chunkIndex, PeerConnection winner) {
+        List<PeerConnection> losers;
+        synchronized (this) {
+            Map<PeerConnection, PeerAddress> transfers = active.get(chunkIndex);
+            if (transfers == null) {
+                return;
+            }
+            losers = new ArrayList<>(transfers.keySet());
+        }
+        // Close outside the lock: closing an SSL socket can block briefly.
+        losers.stream().filter(connection -> connection != winner).forEach(PeerConnection::close);
+    }
+
+    /**
+     * Closes every connection transferring any chunk, for example when a download is paused
+     * or cancelled. The blocked transfers fail immediately and free their threads.
+     */
+    public void abortAll() {
+        List<PeerConnection> connections = new ArrayList<>();
+        synchronized (this) {
+            active.values().forEach(transfers -> connections.addAll(transfers.keySet()));
+        }
+        connections.forEach(PeerConnection::close);
+    }
+}
@@ -2,36 +2,47 @@ package com.riftlink.p2p.service;
 
 import com.google.gson.Gson;
 import com.riftlink.p2p.model.RiftFile;
+import com.riftlink.p2p.util.BufferPool;
 import com.riftlink.p2p.util.Constants;
+import com.riftlink.p2p.util.ThreadPools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLSocket;
 import java.io.*;
-import java.nio.file.Files;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Manages the server-side logic for uploads.
  * It listens for incoming peer connections and serves file chunks concurrently.
+ * Files that are not shared are still served from a running download, one verified chunk at a time.
  */
 public class UploadManager {
     private static final Logger logger = LoggerFactory.getLogger(UploadManager.class);
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    // One thread per connection: blocking socket code stays simple and scales on virtual threads.
+    private final ExecutorService threadPool = ThreadPools.newIoExecutor("upload");
     private final SecurityService securityService;
     private final FileManager fileManager;
-    private final Path sharedDirectory;
+    private final BandwidthManager bandwidthManager;
     private volatile boolean running = true;
     private SSLServerSocket serverSocket;
 
-    public UploadManager(SecurityService securityService, FileManager fileManager, Path sharedDirectory) {
+    /**
+     * A range of a file on disk to send to a peer.
+     */
+    private record ServedRange(Path path, long position, int length) {}
+
+    public UploadManager(SecurityService securityService, FileManager fileManager, BandwidthManager bandwidthManager) {
         this.securityService = securityService;
         this.fileManager = fileManager;
-        this.sharedDirectory = sharedDirectory;
+        this.bandwidthManager = bandwidthManager;
     }
 
     public void start(int port) {
@@ -62,11 +73,31 @@ public class UploadManager {
                 // Handle metadata request
                 String infohash = reader.readLine();
                 handleMetadataRequest(infohash, outputStream);
+            } else if (isFramedRequest(requestType)) {
+                // Persistent connection: keep serving chunk and block requests until the peer hangs up or goes idle.
+                socket.setSoTimeout(Constants.CONNECTION_IDLE_TIMEOUT_MS);
+                DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+                do {
+                    String infohash = reader.readLine();
+                    if (Constants.HAVE_REQUEST.equals(requestType)) {
+                        String sinceStr = reader.readLine();
+                        handleFramedHaveRequest(infohash, sinceStr, dataOutputStream);
+                        continue;
+                    }
+                    String chunkIndexStr = reader.readLine();
+                    if (Constants.BLOCK_REQUEST.equals(requestType)) {
+                        String offsetStr = reader.readLine();
+                        String lengthStr = reader.readLine();
+                        handleFramedBlockRequest(infohash, chunkIndexStr, offsetStr, lengthStr, dataOutputStream, throttleFor(infohash, socket));
+                    } else {
+                        handleFramedChunkRequest(infohash, chunkIndexStr, dataOutputStream, throttleFor(infohash, socket));
+                    }
+                } while (isFramedRequest(requestType = readNextRequest(reader, socket)));
             } else {
                 // Handle chunk request (original logic)
                 String infohash = requestType; // In the old protocol, the first line was the infohash
                 String chunkIndexStr = reader.readLine();
-                handleChunkRequest(infohash, chunkIndexStr, outputStream);
+                handleChunkRequest(infohash, chunkIndexStr, outputStream, throttleFor(infohash, socket));
             }
 
         } catch (Exception e) {
@@ -80,39 +111,241 @@ public class UploadManager {
         }
     }
 
+    private static boolean isFramedRequest(String requestType) {
+        return Constants.CHUNK_REQUEST.equals(requestType) || Constants.BLOCK_REQUEST.equals(requestType)
+            || Constants.HAVE_REQUEST.equals(requestType);
+    }
+
+    /**
+     * Waits for the next request line on a persistent connection.
+     * @return The request type, or null if the peer closed the connection or it went idle.
+     */
+    private String readNextRequest(BufferedReader reader, SSLSocket socket) throws IOException {
+        try {
+            return reader.readLine();
+        } catch (SocketTimeoutException e) {
+            logger.debug("Closing idle connection from {}", socket.getRemoteSocketAddress());
+            return null;
+        }
+    }
+
     private void handleMetadataRequest(String infohash, OutputStream outputStream) throws IOException {
         logger.debug("Received metadata request for infohash {}", infohash);
-        Path riftFilePath = sharedDirectory.resolve(infohash + Constants.METADATA_EXTENSION);
-        if (Files.exists(riftFilePath)) {
-            String json = Files.readString(riftFilePath);
+        RiftFile riftFile = findRiftFile(storeKeyFor(infohash));
+        if (riftFile != null) {
             PrintWriter writer = new PrintWriter(outputStream);
-            writer.print(json); // Use print to avoid extra newline
+            writer.print(new Gson().toJson(riftFile)); // Use print to avoid extra newline
             writer.flush();
+        }
+    }
+
+    private void handleChunkRequest(String infohash, String chunkIndexStr, OutputStream outputStream,
+                                    BandwidthManager.Throttle throttle) throws Exception {
+        ServedRange range = resolveChunk(infohash, chunkIndexStr);
+        if (range == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(range.path(), StandardOpenOption.READ)) {
+            sendRange(channel, range, outputStream, throttle);
+        }
+        logger.debug("Sent chunk {} for infohash {}", chunkIndexStr, infohash);
+    }
+
+    /**
+     * Serves a chunk on a persistent connection. The payload is prefixed with its length,
+     * or with -1 if the chunk cannot be served, so the connection stays usable either way.
+     */
+    private void handleFramedChunkRequest(String infohash, String chunkIndexStr, DataOutputStream outputStream,
+                                          BandwidthManager.Throttle throttle) throws IOException {
+        ServedRange range;
+        try {
+            range = resolveChunk(infohash, chunkIndexStr);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not serve chunk {} for infohash {}: {}", chunkIndexStr, infohash, e.getMessage());
+            range = null;
+        }
+        sendFramed(range, outputStream, throttle);
+        logger.debug("Answered chunk request {} for infohash {}", chunkIndexStr, infohash);
+    }
+
+    /**
+     * Serves a block within a chunk on a persistent connection, framed like a chunk response.
+     */
+    private void handleFramedBlockRequest(String infohash, String chunkIndexStr, String offsetStr, String lengthStr,
+                                          DataOutputStream outputStream, BandwidthManager.Throttle throttle) throws IOException {
+        ServedRange range;
+        try {
+            range = offsetStr == null || lengthStr == null ? null
+                : resolveBlock(infohash, chunkIndexStr, Integer.parseInt(offsetStr), Integer.parseInt(lengthStr));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not serve block {}+{} of chunk {} for infohash {}: {}",
+                offsetStr, lengthStr, chunkIndexStr, infohash, e.getMessage());
+            range = null;
+        }
+        sendFramed(range, outputStream, throttle);
+    }
+
+    /**
+     * Tells a peer which chunks of a file we hold: our whole bitfield, or the chunks gained since
+     * the sequence number the peer got from its previous request. Either answer starts with its
+     * kind (0 for a bitfield, 1 for a list of chunks, -1 if the file is not served), the new
+     * sequence number and the payload's length.
+     */
+    private void handleFramedHaveRequest(String infohash, String sinceStr, DataOutputStream outputStream) throws IOException {
+        HaveUpdate update;
+        try {
+            update = infohash == null || sinceStr == null ? null
+                : fileManager.getChunkStore().haves(storeKeyFor(infohash), Integer.parseInt(sinceStr));
+        } catch (RuntimeException e) {
+            logger.warn("Could not answer HAVE request for infohash {}: {}", infohash, e.getMessage());
+            update = null;
+        }
+
+        if (update == null) {
+            outputStream.writeInt(-1);
+        } else if (update.full()) {
+            byte[] bitfield = update.chunks().toByteArray();
+            outputStream.writeInt(0);
+            outputStream.writeInt(update.sequence());
+            outputStream.writeInt(bitfield.length);
+            outputStream.write(bitfield);
         } else {
-            logger.error("Requested .rift file not found for infohash: {}", infohash);
+            outputStream.writeInt(1);
+            outputStream.writeInt(update.sequence());
+            outputStream.writeInt(update.chunks().cardinality());
+            for (int i = update.chunks().nextSetBit(0); i >= 0; i = update.chunks().nextSetBit(i + 1)) {
+                outputStream.writeInt(i);
+            }
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * @return The chunk store key we serve a file from: the shared copy if there is one, else a running download.
+     */
+    private String storeKeyFor(String infohash) {
+        return fileManager.getChunkStore().getRiftFile(infohash) != null ? infohash : ChunkStore.downloadKey(infohash);
+    }
+
+    /**
+     * Sends a range prefixed with its length, or -1 if there is nothing to send. The file is
+     * opened before the header goes out, so a file that vanished is still answered with -1.
+     */
+    private void sendFramed(ServedRange range, DataOutputStream outputStream, BandwidthManager.Throttle throttle) throws IOException {
+        FileChannel channel = openRange(range);
+        if (channel == null) {
+            outputStream.writeInt(-1);
+            outputStream.flush();
+            return;
+        }
+        try (channel) {
+            outputStream.writeInt(range.length());
+            sendRange(channel, range, outputStream, throttle);
+        }
+    }
+
+    private FileChannel openRange(ServedRange range) {
+        if (range == null) {
+            return null;
+        }
+        try {
+            return FileChannel.open(range.path(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            logger.warn("Could not open {} to serve it: {}", range.path(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Streams a range of a file to a peer through a pooled buffer, taking bandwidth tokens
+     * before each slice so the socket never sends faster than the upload limits allow.
+     * Nothing is held in memory beyond the one buffer, however large the range.
+     */
+    private void sendRange(FileChannel channel, ServedRange range, OutputStream outputStream,
+                           BandwidthManager.Throttle throttle) throws IOException {
+        try (BufferPool.Lease lease = BufferPool.acquire()) {
+            ByteBuffer buffer = lease.buffer();
+            long position = range.position();
+            long end = position + range.length();
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                while (buffer.hasRemaining()) {
+                    // The length header is already out, so a short file can only end the connection.
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("File is shorter than its metadata: " + range.path());
+                    }
+                }
+                int length = buffer.position();
+                throttle.acquire(length);
+                outputStream.write(lease.array(), 0, length);
+                // Push each slice out now; buffering would release the throttled bytes in one burst.
+                outputStream.flush();
+                position += length;
+            }
         }
     }
 
-    private void handleChunkRequest(String infohash, String chunkIndexStr, OutputStream outputStream) throws Exception {
+    private BandwidthManager.Throttle throttleFor(String infohash, SSLSocket socket) {
+        return bandwidthManager.throttle(BandwidthManager.Direction.UPLOAD, infohash, socket.getInetAddress().getHostAddress());
+    }
+
+    /**
+     * Finds where a requested chunk lies on disk.
+     * @return The chunk's range, or null if the request is invalid or we do not hold the chunk.
+     */
+    private ServedRange resolveChunk(String infohash, String chunkIndexStr) throws IOException {
         if (infohash == null || chunkIndexStr == null) {
             logger.warn("Invalid chunk request from peer");
-            return;
+            return null;
         }
         int chunkIndex = Integer.parseInt(chunkIndexStr);
         logger.debug("Received chunk request for infohash {} chunk {}", infohash, chunkIndex);
+        String key = storeKeyFor(infohash);
+        RiftFile riftFile = findRiftFile(key);
+        if (riftFile == null || chunkIndex < 0 || chunkIndex >= riftFile.getNumberOfChunks()) {
+            return null;
+        }
+        return resolveBlock(key, riftFile, chunkIndex, 0, riftFile.getChunkLength(chunkIndex));
+    }
 
-        Path riftFilePath = sharedDirectory.resolve(infohash + Constants.METADATA_EXTENSION);
-        if (!Files.exists(riftFilePath)) {
-            logger.error("Requested .rift file not found for infohash: {}", infohash);
-            return;
+    /**
+     * Finds where a requested block within a chunk lies on disk.
+     * @return The block's range, or null if the request is invalid or we do not hold the chunk.
+     * @throws IOException if the block lies outside its chunk.
+     */
+    private ServedRange resolveBlock(String infohash, String chunkIndexStr, int offset, int length) throws IOException {
+        if (infohash == null || chunkIndexStr == null) {
+            return null;
         }
-        String json = Files.readString(riftFilePath);
-        RiftFile riftFile = new Gson().fromJson(json, RiftFile.class);
+        String key = storeKeyFor(infohash);
+        RiftFile riftFile = findRiftFile(key);
+        return riftFile == null ? null : resolveBlock(key, riftFile, Integer.parseInt(chunkIndexStr), offset, length);
+    }
 
-        byte[] chunkData = fileManager.getChunk(riftFile, chunkIndex);
-        outputStream.write(chunkData);
-        outputStream.flush();
-        logger.debug("Sent chunk {} for infohash {}", chunkIndex, infohash);
+    private ServedRange resolveBlock(String key, RiftFile riftFile, int chunkIndex, int offset, int length) throws IOException {
+        if (chunkIndex < 0 || chunkIndex >= riftFile.getNumberOfChunks()) {
+            return null;
+        }
+        if (offset < 0 || length <= 0 || (long) offset + length > riftFile.getChunkLength(chunkIndex)) {
+            throw new IOException("Block " + offset + "+" + length + " lies outside chunk " + chunkIndex);
+        }
+        // Returns null for chunks a running download has not verified yet.
+        Path path = fileManager.getChunkStore().locate(key, chunkIndex);
+        return path == null ? null : new ServedRange(path, riftFile.getChunkOffset(chunkIndex) + offset, length);
+    }
+
+    /**
+     * Looks up the metadata of a shared file or running download as registered with the chunk
+     * store, so serving a request never reads it from disk.
+     * @param key The chunk store key, as returned by {@link #storeKeyFor}.
+     * @return The metadata, or null if the file is neither shared nor being downloaded.
+     */
+    private RiftFile findRiftFile(String key) {
+        RiftFile riftFile = fileManager.getChunkStore().getRiftFile(key);
+        if (riftFile == null) {
+            logger.error("Requested .rift file not found for key: {}", key);
+        }
+        return riftFile;
     }
 
     public void stop() {
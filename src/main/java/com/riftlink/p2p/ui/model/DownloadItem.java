@@ -14,6 +14,7 @@ public class DownloadItem {
     private final StringProperty status = new SimpleStringProperty();
     private final DoubleProperty progress = new SimpleDoubleProperty();
     private final StringProperty speed = new SimpleStringProperty();
+    private final StringProperty eta = new SimpleStringProperty();
     private final String infohash;
 
     public DownloadItem(String filename, String infohash) {
@@ -22,6 +23,7 @@ public class DownloadItem {
         this.status.set("Starting...");
         this.progress.set(0.0);
         this.speed.set("0 KB/s");
+        this.eta.set("");
     }
 
     // --- JavaFX Property Getters ---
@@ -29,6 +31,7 @@ public class DownloadItem {
     public StringProperty statusProperty() { return status; }
     public DoubleProperty progressProperty() { return progress; }
     public StringProperty speedProperty() { return speed; }
+    public StringProperty etaProperty() { return eta; }
 
     // --- Standard Getters/Setters for convenience ---
     public String getFilename() { return filename.get(); }
@@ -36,7 +39,9 @@ public class DownloadItem {
     public String getStatus() { return status.get(); }  
     public double getProgress() { return progress.get(); } 
     public String getSpeed() { return speed.get(); }
+    public String getEta() { return eta.get(); }
     public void setStatus(String status) { this.status.set(status); }
     public void setProgress(double progress) { this.progress.set(progress); }
     public void setSpeed(String speed) { this.speed.set(speed); }
+    public void setEta(String eta) { this.eta.set(eta); }
 }
\ No newline at end of file
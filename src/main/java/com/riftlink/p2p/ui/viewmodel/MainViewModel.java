@@ -10,6 +10,7 @@ import com.riftlink.p2p.ui.model.DownloadItem;
 import com.riftlink.p2p.ui.model.SearchResult;
 import com.riftlink.p2p.util.Hashing;
 import com.riftlink.p2p.util.Constants;
+import com.riftlink.p2p.util.ThreadPools;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -22,8 +23,16 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 /**
  * The ViewModel for the main application window.
@@ -37,6 +46,7 @@ public class MainViewModel {
     private final FileManager fileManager;
     private final DownloadManager downloadManager;
     private final SecurityService securityService;
+    private final ExecutorService ioExecutor = ThreadPools.newIoExecutor("ui-io");
 
     // UI State
     private final ObservableList<DownloadItem> downloadItems = FXCollections.observableArrayList();
@@ -90,7 +100,7 @@ public class MainViewModel {
                 logger.error("Could not share file " + file.getName(), e);
                 // Show error to user in UI
             }
-        });
+        }, ioExecutor);
     }
 
 
@@ -144,11 +154,24 @@ public class MainViewModel {
         
         RiftFile riftFile = selectedResult.getRiftFile();
         DownloadItem newItem = new DownloadItem(selectedResult.getFilename(), selectedResult.getInfoHash());
+        refreshLibraryOnCompletion(newItem);
         Platform.runLater(() -> downloadItems.add(newItem));
         
         downloadManager.startDownload(riftFile, selectedResult.getInfoHash(), newItem);
     }
     
+    /**
+     * Re-adds downloads that were unfinished when the application last stopped and resumes them.
+     */
+    public void restoreDownloads() {
+        downloadManager.restoreDownloads((riftFile, infohash) -> {
+            DownloadItem item = new DownloadItem(riftFile.filename(), infohash);
+            refreshLibraryOnCompletion(item);
+            Platform.runLater(() -> downloadItems.add(item));
+            return item;
+        });
+    }
+
     public void pauseDownload(DownloadItem selected) {
         logger.info("Pausing download for: {}", selected.getFilename());
         downloadManager.pauseDownload(selected.getInfoHash());
@@ -159,6 +182,53 @@ public class MainViewModel {
         downloadManager.resumeDownload(selected.getInfoHash());
     }
 
+    public void moveDownloadUp(DownloadItem selected) {
+        downloadManager.moveUp(selected.getInfoHash());
+        syncQueueOrder();
+    }
+
+    public void moveDownloadDown(DownloadItem selected) {
+        downloadManager.moveDown(selected.getInfoHash());
+        syncQueueOrder();
+    }
+
+    /**
+     * Changes the priority of a queued download; downloads that have started are not affected.
+     * @param priority One of the {@code PRIORITY_} constants in {@link Constants}.
+     */
+    public void setDownloadPriority(DownloadItem selected, int priority) {
+        logger.info("Setting priority of {} to {}", selected.getFilename(), priority);
+        downloadManager.setPriority(selected.getInfoHash(), priority);
+        syncQueueOrder();
+    }
+
+    /**
+     * Reorders the queued rows to match the download queue. Running and finished downloads keep
+     * their rows; the queued ones are laid out over the rows they already occupy, in queue order.
+     */
+    private void syncQueueOrder() {
+        List<String> queue = downloadManager.getQueue();
+        Set<String> queued = new HashSet<>(queue);
+        Platform.runLater(() -> {
+            Map<String, DownloadItem> items = new HashMap<>();
+            List<Integer> rows = new ArrayList<>();
+            for (int i = 0; i < downloadItems.size(); i++) {
+                DownloadItem item = downloadItems.get(i);
+                if (queued.contains(item.getInfoHash())) {
+                    items.put(item.getInfoHash(), item);
+                    rows.add(i);
+                }
+            }
+            Iterator<Integer> row = rows.iterator();
+            for (String infohash : queue) {
+                DownloadItem item = items.get(infohash);
+                if (item != null) {
+                    downloadItems.set(row.next(), item);
+                }
+            }
+        });
+    }
+
     public void cancelDownload(DownloadItem selected) {
         logger.info("Cancelling download for: {}", selected.getFilename());
         downloadManager.cancelDownload(selected.getInfoHash());
@@ -180,6 +250,17 @@ public class MainViewModel {
                 .map(Hashing::createInfoHash);
     }
 
+    /**
+     * Completed downloads are seeded in place, so they join the library once they finish.
+     */
+    private void refreshLibraryOnCompletion(DownloadItem item) {
+        item.statusProperty().addListener((obs, oldStatus, newStatus) -> {
+            if ("Completed".equals(newStatus)) {
+                updateLibraryFiles();
+            }
+        });
+    }
+
     private void updateLibraryFiles() {
         Platform.runLater(() -> {
             libraryItems.clear();
@@ -196,6 +277,8 @@ public class MainViewModel {
             
             // Create SSL socket
             socket = securityService.createSocket(host, uploadPort);
+            // A stalled peer must not hold the metadata request forever.
+            socket.setSoTimeout((int) Constants.DEFAULT_TRANSFER_DEADLINE_MS);
             
             // Use try-with-resources for streams only
             try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
@@ -228,6 +311,6 @@ public class MainViewModel {
                 }
             }
         }
-    });
+    }, ioExecutor);
 }   
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package com.riftlink.p2p.ui.viewmodel;
 import com.riftlink.p2p.ui.model.DownloadItem;
 import com.riftlink.p2p.ui.model.SearchResult;
 import com.riftlink.p2p.ui.viewmodel.MainViewModel;
+import com.riftlink.p2p.util.Constants;
 
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -40,6 +41,9 @@ public class MainWindowController {
     @FXML private Button pauseButton;
     @FXML private Button resumeButton;
     @FXML private Button cancelButton;
+    @FXML private Button moveUpButton;
+    @FXML private Button moveDownButton;
+    @FXML private MenuButton priorityButton;
     @FXML private Button copyHashDownloadButton;
     @FXML private Label statusLabel;
 
@@ -138,6 +142,9 @@ public class MainWindowController {
         pauseButton.setDisable(!hasSelection);
         resumeButton.setDisable(!hasSelection);
         cancelButton.setDisable(!hasSelection);
+        moveUpButton.setDisable(!hasSelection);
+        moveDownButton.setDisable(!hasSelection);
+        priorityButton.setDisable(!hasSelection);
         copyHashDownloadButton.setDisable(!hasSelection);
         
         // Update button states based on download status
@@ -145,13 +152,18 @@ public class MainWindowController {
             String status = selectedItem.getStatus();
             
             // Enable pause only if downloading
-            pauseButton.setDisable(!"Downloading".equals(status));
+            pauseButton.setDisable(status == null || !status.startsWith("Downloading"));
             
             // Enable resume only if paused
             resumeButton.setDisable(!"Paused".equals(status));
             
             // Cancel is always available for active downloads
             cancelButton.setDisable("Completed".equals(status));
+
+            // Only downloads still waiting to start can be reordered
+            moveUpButton.setDisable(!"Queued".equals(status));
+            moveDownButton.setDisable(!"Queued".equals(status));
+            priorityButton.setDisable(!"Queued".equals(status));
         }
     }
 
@@ -293,6 +305,55 @@ public class MainWindowController {
         }
     }
 
+    @FXML
+    protected void handleMoveUpAction(ActionEvent event) {
+        DownloadItem selected = downloadsTable.getSelectionModel().getSelectedItem();
+        if (selected != null) {
+            viewModel.moveDownloadUp(selected);
+            keepSelected(selected);
+        }
+    }
+
+    @FXML
+    protected void handleMoveDownAction(ActionEvent event) {
+        DownloadItem selected = downloadsTable.getSelectionModel().getSelectedItem();
+        if (selected != null) {
+            viewModel.moveDownloadDown(selected);
+            keepSelected(selected);
+        }
+    }
+
+    @FXML
+    protected void handleHighPriorityAction(ActionEvent event) {
+        setSelectedPriority(Constants.PRIORITY_HIGH);
+    }
+
+    @FXML
+    protected void handleNormalPriorityAction(ActionEvent event) {
+        setSelectedPriority(Constants.PRIORITY_NORMAL);
+    }
+
+    @FXML
+    protected void handleLowPriorityAction(ActionEvent event) {
+        setSelectedPriority(Constants.PRIORITY_LOW);
+    }
+
+    private void setSelectedPriority(int priority) {
+        DownloadItem selected = downloadsTable.getSelectionModel().getSelectedItem();
+        if (selected != null) {
+            viewModel.setDownloadPriority(selected, priority);
+            keepSelected(selected);
+        }
+    }
+
+    /**
+     * Reselects a download once its row has moved, so repeated moves keep acting on it.
+     */
+    private void keepSelected(DownloadItem item) {
+        // Queued after the view model's reordering, which also runs later on the FX thread.
+        Platform.runLater(() -> downloadsTable.getSelectionModel().select(item));
+    }
+
     @FXML
     protected void handleCancelDownloadAction(ActionEvent event) {
         DownloadItem selected = downloadsTable.getSelectionModel().getSelectedItem();
@@ -0,0 +1,150 @@
+package com.riftlink.p2p.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A process-wide pool of transfer buffers, so uploads, downloads and hashing reuse the same
+ * {@link Constants#TRANSFER_BUFFER_SIZE} buffers instead of allocating fresh arrays per chunk.
+ * <p>
+ * Buffers are heap buffers with an accessible array, since sockets are written through TLS
+ * streams that take arrays. At most {@link Constants#BUFFER_POOL_CAPACITY} idle buffers are
+ * kept; buffers beyond that are left to the garbage collector. Setting the system property
+ * {@value #DEBUG_PROPERTY} to {@code true} tracks every lease and logs, with the acquiring stack,
+ * any buffer that becomes unreachable without having been released.
+ */
+public final class BufferPool {
+
+    /**
+     * The system property enabling leak detection.
+     */
+    public static final String DEBUG_PROPERTY = "riftlink.buffers.debug";
+
+    private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+    private static final boolean DEBUG = Boolean.getBoolean(DEBUG_PROPERTY);
+    private static final Cleaner cleaner = DEBUG ? Cleaner.create() : null;
+    private static final Deque<ByteBuffer> idle = new ConcurrentLinkedDeque<>();
+    private static final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private BufferPool() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    /**
+     * A buffer borrowed from the pool, owned by the caller until it is closed.
+     * It may be handed to another thread, which then becomes responsible for closing it.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final ByteBuffer buffer;
+        private final LeakCheck leakCheck;
+        private final Cleaner.Cleanable cleanable;
+        private volatile boolean released;
+
+        private Lease(ByteBuffer buffer) {
+            this.buffer = buffer;
+            if (DEBUG) {
+                this.leakCheck = new LeakCheck(buffer, new Throwable("Buffer acquired here"));
+                this.cleanable = cleaner.register(this, leakCheck);
+            } else {
+                this.leakCheck = null;
+                this.cleanable = null;
+            }
+        }
+
+        /**
+         * @return The buffer, cleared when it was acquired.
+         */
+        public ByteBuffer buffer() {
+            if (released) {
+                throw new IllegalStateException("Buffer used after it was released");
+            }
+            return buffer;
+        }
+
+        /**
+         * @return The buffer's backing array.
+         */
+        public byte[] array() {
+            return buffer().array();
+        }
+
+        /**
+         * Returns the buffer to the pool. Closing a lease twice has no further effect.
+         */
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (leakCheck != null) {
+                leakCheck.released = true;
+                cleanable.clean();
+            }
+            recycle(buffer);
+        }
+    }
+
+    /**
+     * Runs once a tracked lease is unreachable; complains if it was never closed.
+     * Must not reference the lease itself, or the lease would never become unreachable.
+     */
+    private static final class LeakCheck implements Runnable {
+        private final ByteBuffer buffer;
+        private final Throwable origin;
+        private volatile boolean released;
+
+        LeakCheck(ByteBuffer buffer, Throwable origin) {
+            this.buffer = buffer;
+            this.origin = origin;
+        }
+
+        @Override
+        public void run() {
+            if (!released) {
+                logger.error("A pooled buffer was never released", origin);
+                recycle(buffer);
+            }
+        }
+    }
+
+    /**
+     * Borrows a buffer of {@link Constants#TRANSFER_BUFFER_SIZE} bytes, allocating one if the pool is empty.
+     * @return A lease to be closed once the buffer is no longer used.
+     */
+    public static Lease acquire() {
+        ByteBuffer buffer = idle.pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(Constants.TRANSFER_BUFFER_SIZE);
+        } else {
+            idleCount.decrementAndGet();
+        }
+        return new Lease(buffer);
+    }
+
+    /**
+     * @return The number of idle buffers held by the pool.
+     */
+    public static int idleBuffers() {
+        return idleCount.get();
+    }
+
+    private static void recycle(ByteBuffer buffer) {
+        buffer.clear();
+        if (idleCount.incrementAndGet() <= Constants.BUFFER_POOL_CAPACITY) {
+            // Most recently used first, so the buffers in use stay warm in the cache.
+            idle.offerFirst(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+}
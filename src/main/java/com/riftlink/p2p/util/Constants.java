@@ -30,7 +30,298 @@ public final class Constants {
      * The hashing algorithm used for file chunks and infohashes.
      */
     public static final String HASH_ALGORITHM = "SHA-256";
-    
+
+    /**
+     * Request type for a chunk served over a persistent connection.
+     * Responses are length-prefixed so that many requests can share one socket.
+     */
+    public static final String CHUNK_REQUEST = "GET_CHUNK";
+
+    /**
+     * Request type for a block within a chunk, served over a persistent connection like {@link #CHUNK_REQUEST}.
+     */
+    public static final String BLOCK_REQUEST = "GET_BLOCK";
+
+    /**
+     * Request type for the chunks a peer holds of a file, served over a persistent connection like
+     * {@link #CHUNK_REQUEST}: either its whole bitfield or the chunks it has gained since an earlier request.
+     */
+    public static final String HAVE_REQUEST = "GET_HAVE";
+
+    /**
+     * How often a download asks peers that hold only part of a file for the chunks they have gained, in milliseconds.
+     */
+    public static final int HAVE_POLL_INTERVAL_MS = 5_000;
+
+    /**
+     * How many HAVE polls a download waits through for a new or partial peer to hold a chunk it still needs before giving up.
+     */
+    public static final int MAX_IDLE_HAVE_POLLS = 12;
+
+    /**
+     * The size of the blocks a chunk is split into when it is fetched from several peers at once.
+     */
+    public static final int BLOCK_SIZE_BYTES = 64 * 1024;
+
+    /**
+     * The number of block requests kept outstanding on one connection.
+     */
+    public static final int BLOCK_PIPELINE_DEPTH = 4;
+
+    /**
+     * The maximum number of peers a single chunk is fetched from at once, block by block.
+     */
+    public static final int MAX_PEERS_PER_CHUNK = 3;
+
+    /**
+     * How long an uploader keeps an idle persistent connection open, in milliseconds.
+     */
+    public static final int CONNECTION_IDLE_TIMEOUT_MS = 60_000;
+
+    /**
+     * How long a downloader keeps an unused pooled connection before discarding it.
+     * Kept below {@link #CONNECTION_IDLE_TIMEOUT_MS} so we never reuse a socket the uploader is closing.
+     */
+    public static final int POOLED_CONNECTION_MAX_IDLE_MS = 30_000;
+
+    /**
+     * The maximum number of idle connections kept open to a single peer.
+     * Matches {@link #MAX_PEER_WINDOW} so a fully opened request window can be reused.
+     */
+    public static final int MAX_IDLE_CONNECTIONS_PER_PEER = 16;
+
+    /**
+     * The size of the buffer used to stream chunk data between sockets and files.
+     */
+    public static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of idle transfer buffers kept for reuse (48 MB), enough to cover
+     * both pipeline stages and the buffers of every active socket.
+     */
+    public static final int BUFFER_POOL_CAPACITY = 768;
+
+    /**
+     * How many bytes of received chunk data may wait for each pipeline stage (verification,
+     * then disk) before receivers are held back.
+     */
+    public static final int PIPELINE_STAGE_CAPACITY_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * The number of threads writing verified-stage chunk data to disk.
+     */
+    public static final int DISK_WRITER_THREADS = 2;
+
+    /**
+     * The suffix of a download's output file while it is still incomplete.
+     */
+    public static final String PARTIAL_FILE_EXTENSION = ".part";
+
+    /**
+     * The file extension for the pointer to a file shared from outside the shared directory,
+     * such as a completed download seeded in place.
+     */
+    public static final String LOCATION_EXTENSION = ".location";
+
+    /**
+     * The file extension for the resume journal of an unfinished download.
+     */
+    public static final String JOURNAL_EXTENSION = ".journal";
+
+    /**
+     * The suffix appended to a journal's path for the file holding its verified chunk bitfield.
+     */
+    public static final String JOURNAL_BITFIELD_EXTENSION = ".bitfield";
+
+    /**
+     * The minimum time between two checkpoints of a download journal, in milliseconds.
+     */
+    public static final int JOURNAL_CHECKPOINT_INTERVAL_MS = 5_000;
+
+    /**
+     * A download enters endgame once this many chunks or fewer are still missing.
+     */
+    public static final int ENDGAME_CHUNK_THRESHOLD = 8;
+
+    /**
+     * How many additional peers each missing chunk is requested from during endgame.
+     */
+    public static final int ENDGAME_DUPLICATE_REQUESTS = 2;
+
+    /**
+     * How often a download re-checks whether it should enter endgame, in milliseconds.
+     */
+    public static final int ENDGAME_POLL_INTERVAL_MS = 250;
+
+    /**
+     * The number of concurrent requests a peer is allowed before its window has adapted.
+     */
+    public static final int INITIAL_PEER_WINDOW = 2;
+
+    /**
+     * The upper bound on concurrent requests to a single peer.
+     */
+    public static final int MAX_PEER_WINDOW = 16;
+
+    /**
+     * The upper bound on chunks a single download has in flight. The dispatcher schedules no
+     * further ahead, so its memory use does not grow with the size of the file.
+     */
+    public static final int MAX_CHUNKS_IN_FLIGHT = 128;
+
+    /**
+     * A peer's window grows while each round's throughput beats the previous round by this factor.
+     */
+    public static final double WINDOW_GROWTH_THRESHOLD = 1.05;
+
+    /**
+     * A peer's window is halved when a round's throughput falls below the previous round by this factor.
+     */
+    public static final double WINDOW_SLOWDOWN_THRESHOLD = 0.8;
+
+    /**
+     * How many failed requests a single hash mismatch weighs in a peer's reliability score.
+     */
+    public static final int HASH_MISMATCH_PENALTY = 10;
+
+    /**
+     * The number of failed requests in a row after which a peer is banned.
+     */
+    public static final int MAX_CONSECUTIVE_FAILURES = 5;
+
+    /**
+     * How long a peer is banned after repeated failures, in milliseconds.
+     */
+    public static final long FAILURE_BAN_MS = 60_000;
+
+    /**
+     * How long a peer is banned per chunk of corrupt data it has served, in milliseconds.
+     */
+    public static final long HASH_MISMATCH_BAN_MS = 10 * 60_000;
+
+    /**
+     * The number of delivered chunks needed before a peer can be judged too slow.
+     */
+    public static final int MIN_SAMPLES_FOR_SLOW_BAN = 5;
+
+    /**
+     * How much a peer on one of our own networks is preferred over a distant peer with the same record.
+     */
+    public static final double LOCAL_PEER_BONUS = 4.0;
+
+    /**
+     * A peer is banned as too slow when its throughput falls below this fraction of the fastest peer
+     * on the same side of the LAN boundary.
+     */
+    public static final double SLOW_PEER_FRACTION = 0.05;
+
+    /**
+     * How long a peer is banned for being too slow, in milliseconds.
+     */
+    public static final long SLOW_PEER_BAN_MS = 2 * 60_000;
+
+    /**
+     * How much traffic a bandwidth limit lets through in a single burst, in milliseconds at the limit's rate.
+     */
+    public static final int BANDWIDTH_BURST_MS = 250;
+
+    /**
+     * How often download progress, speed and ETA are pushed to the UI, in milliseconds.
+     */
+    public static final int PROGRESS_UPDATE_INTERVAL_MS = 500;
+
+    /**
+     * The sliding window over which a download's speed is averaged, in milliseconds.
+     */
+    public static final int SPEED_WINDOW_MS = 5_000;
+
+    /**
+     * The default maximum number of downloads transferring at the same time; the rest wait in the queue.
+     */
+    public static final int MAX_ACTIVE_DOWNLOADS = 3;
+
+    /**
+     * Queue priorities offered in the UI; queued downloads with a higher priority start first.
+     */
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_LOW = -1;
+
+    /**
+     * The default number of failed chunk attempts a download tolerates before it gives up.
+     * A chunk fails an attempt once every peer holding it has failed to deliver it; every
+     * completed chunk gives one attempt back, up to this budget.
+     */
+    public static final int DEFAULT_RETRY_BUDGET = 64;
+
+    /**
+     * The delay before a failed chunk is first retried, doubling with every further failure, in milliseconds.
+     */
+    public static final long RETRY_BASE_DELAY_MS = 1_000;
+
+    /**
+     * The longest delay before a failed chunk is retried, in milliseconds.
+     */
+    public static final long RETRY_MAX_DELAY_MS = 60_000;
+
+    /**
+     * The minimum time between two DHT lookups for the peers of a download, in milliseconds.
+     * Lookups requested sooner, for example while waiting to retry chunks, are skipped.
+     */
+    public static final long PEER_REDISCOVERY_INTERVAL_MS = 30_000;
+
+    /**
+     * How often a running download looks up its peers in the DHT again, in milliseconds.
+     */
+    public static final long SWARM_REFRESH_INTERVAL_MS = 120_000;
+
+    /**
+     * A peer is dropped from a download once it has been missing from this many DHT lookups in a row.
+     */
+    public static final int SWARM_MISSED_LOOKUPS_BEFORE_DROP = 2;
+
+    /**
+     * The longest a TCP connect or TLS handshake may take, in milliseconds.
+     * Also the deadline for peers we have no latency measurements for yet.
+     */
+    public static final int CONNECT_TIMEOUT_MS = 10_000;
+
+    /**
+     * The shortest connect or handshake deadline given to a peer, however low its latency, in milliseconds.
+     */
+    public static final int MIN_CONNECT_TIMEOUT_MS = 1_000;
+
+    /**
+     * Deadlines are this many times the time a request is expected to take from a peer's history.
+     */
+    public static final double DEADLINE_SAFETY_FACTOR = 4.0;
+
+    /**
+     * The transfer deadline for a chunk request to a peer we have no measurements for yet, in milliseconds.
+     */
+    public static final long DEFAULT_TRANSFER_DEADLINE_MS = 60_000;
+
+    /**
+     * The bounds of a transfer deadline derived from a peer's history, in milliseconds.
+     */
+    public static final long MIN_TRANSFER_DEADLINE_MS = 2_000;
+    public static final long MAX_TRANSFER_DEADLINE_MS = 120_000;
+
+    /**
+     * A chunk request still running past this percentile of recent request durations gets a hedged duplicate.
+     */
+    public static final double HEDGE_PERCENTILE = 0.95;
+
+    /**
+     * The number of completed requests needed before requests are hedged.
+     */
+    public static final int HEDGE_MIN_SAMPLES = 20;
+
+    /**
+     * The number of recent request durations the hedging percentile is computed over.
+     */
+    public static final int LATENCY_SAMPLE_WINDOW = 256;
+
     /**
      * Private constructor to prevent instantiation.
      */
@@ -35,6 +35,27 @@ public final class Hashing {
         }
     }
 
+    /**
+     * Creates a fresh SHA-256 digest for hashing data incrementally as it arrives.
+     * @return A new MessageDigest instance.
+     */
+    public static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance(Constants.HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Could not find SHA-256 algorithm", e);
+        }
+    }
+
+    /**
+     * Completes an incremental hash.
+     * @param digest The digest that has been fed all the data.
+     * @return The hash as a lowercase hexadecimal string.
+     */
+    public static String finish(MessageDigest digest) {
+        return bytesToHex(digest.digest());
+    }
+
     /**
      * Generates the infohash for a RiftFile object.
      * The infohash is the SHA-256 hash of the metadata file's JSON representation.
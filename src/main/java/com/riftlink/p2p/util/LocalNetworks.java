@@ -0,0 +1,62 @@
+package com.riftlink.p2p.util;
+
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+
+/**
+ * A utility class for telling peers on our own networks apart from distant ones.
+ */
+public final class LocalNetworks {
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private LocalNetworks() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    /**
+     * Checks whether an address is on one of the networks this machine is attached to.
+     * @param address The address to check.
+     * @return true if the address is a loopback or link-local address, or lies in the subnet of one of our interfaces.
+     */
+    public static boolean isLocal(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isLinkLocalAddress()) {
+            return true;
+        }
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp()) continue;
+                for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                    if (sameSubnet(interfaceAddress.getAddress(), address, interfaceAddress.getNetworkPrefixLength())) {
+                        return true;
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // Without interface information every peer counts as distant.
+        }
+        return false;
+    }
+
+    private static boolean sameSubnet(InetAddress ours, InetAddress theirs, int prefixLength) {
+        byte[] a = ours.getAddress();
+        byte[] b = theirs.getAddress();
+        if (a.length != b.length || prefixLength <= 0 || prefixLength > a.length * 8) {
+            return false;
+        }
+        int fullBytes = prefixLength / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        int remainingBits = prefixLength % 8;
+        if (remainingBits == 0) {
+            return true;
+        }
+        int mask = (0xFF << (8 - remainingBits)) & 0xFF;
+        return (a[fullBytes] & mask) == (b[fullBytes] & mask);
+    }
+}
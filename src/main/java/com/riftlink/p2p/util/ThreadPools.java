@@ -0,0 +1,61 @@
+package com.riftlink.p2p.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the executors used for blocking network and file I/O, and the fixed pools for
+ * CPU-bound and disk-bound stages.
+ * <p>
+ * By default every task runs on its own virtual thread, so blocking socket code scales to
+ * thousands of concurrent transfers without a platform thread each. Setting the system
+ * property {@value #MODE_PROPERTY} to {@code platform} falls back to cached platform threads.
+ */
+public final class ThreadPools {
+
+    /**
+     * The system property selecting the execution model: {@code virtual} (default) or {@code platform}.
+     */
+    public static final String MODE_PROPERTY = "riftlink.threads";
+
+    /**
+     * Private constructor to prevent instantiation.
+     */
+    private ThreadPools() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    /**
+     * Creates an executor for blocking I/O tasks.
+     * @param name The prefix for the names of the executor's threads.
+     * @return A new executor that starts a thread per task.
+     */
+    public static ExecutorService newIoExecutor(String name) {
+        if (useVirtualThreads()) {
+            ThreadFactory factory = Thread.ofVirtual().name(name + "-", 0).factory();
+            return Executors.newThreadPerTaskExecutor(factory);
+        }
+        ThreadFactory factory = Thread.ofPlatform().name(name + "-", 0).daemon(true).factory();
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    /**
+     * Creates a fixed pool of daemon platform threads, for work whose parallelism should be
+     * bounded by a resource such as cores or disks rather than by the number of tasks.
+     * @param name The prefix for the names of the executor's threads.
+     * @param threads The number of threads.
+     * @return A new executor with an unbounded task queue.
+     */
+    public static ExecutorService newFixedExecutor(String name, int threads) {
+        ThreadFactory factory = Thread.ofPlatform().name(name + "-", 0).daemon(true).factory();
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+
+    /**
+     * @return true if blocking I/O should run on virtual threads.
+     */
+    public static boolean useVirtualThreads() {
+        return !"platform".equalsIgnoreCase(System.getProperty(MODE_PROPERTY));
+    }
+}